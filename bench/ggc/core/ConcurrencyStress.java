@@ -0,0 +1,209 @@
+package ggc.core;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ggc.core.exception.UnavailableProductQuantityException;
+
+/**
+ * Stress test for a WarehouseManager shared between threads.
+ *
+ * Writer threads register acquisitions and sales by credit and pay their
+ * sales; each writer has partners of its own (a new one every 64
+ * operations, to keep their histories short), so it can find its sales
+ * and add up exactly how much it changed the available balance. Reader
+ * threads list batches and products, look up transactions and read the
+ * balances meanwhile. At the end, no update may be lost: the next
+ * transaction ID must count every registered transaction, every ID must
+ * be found, and the available balance must be the initial one plus every
+ * writer's changes.
+ *
+ * With --unlocked, the writers register their transactions on the
+ * Warehouse directly, without the manager's locks, relying on the
+ * per-product locks alone; partners are still registered through the
+ * manager, which changes the set of partners.
+ *
+ *   javac -encoding UTF-8 -d out -sourcepath src:bench bench/ggc/core/ConcurrencyStress.java
+ *   java -cp out ggc.core.ConcurrencyStress [writers] [readers] [operations per writer] [--unlocked]
+ */
+public class ConcurrencyStress {
+
+  public static void main(String[] args) throws Exception {
+    int writers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+    int readers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+    int operations = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+    boolean unlocked = List.of(args).contains("--unlocked");
+
+    Path file = Files.createTempFile("ggc-stress", ".txt");
+    new DatasetGenerator(10000, 20211206L).writeImportFile(file);
+    WarehouseManager manager = new WarehouseManager();
+    manager.setConcurrent(true);
+    manager.importFile(file.toString());
+    Files.delete(file);
+
+    double initialBalance = manager.getAvailableBalance();
+    int initialId = manager.getWarehouse().getNextTransactionId();
+
+    CountDownLatch start = new CountDownLatch(1);
+    AtomicInteger running = new AtomicInteger(writers);
+    AtomicInteger readerErrors = new AtomicInteger();
+    double[] balanceChanges = new double[writers];
+    int[] registered = new int[writers];
+    List<Thread> threads = new ArrayList<Thread>();
+
+    for (int i = 0; i < writers; i++) {
+      int writer = i;
+      threads.add(new Thread(() -> {
+        try {
+          start.await();
+          write(manager, unlocked, writer, operations, balanceChanges, registered);
+        } catch (Exception e) {
+          throw new IllegalStateException(e);
+        } finally {
+          running.decrementAndGet();
+        }
+      }, "writer-" + i));
+    }
+    for (int i = 0; i < readers; i++) {
+      long seed = i;
+      threads.add(new Thread(() -> {
+        Random random = new Random(seed);
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        while (running.get() > 0) {
+          try {
+            read(manager, random, initialId);
+          } catch (RuntimeException e) {
+            readerErrors.incrementAndGet();
+          }
+        }
+      }, "reader-" + i));
+    }
+
+    long begin = System.nanoTime();
+    threads.forEach(Thread::start);
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    long elapsed = System.nanoTime() - begin;
+
+    int expectedTransactions = 0;
+    double expectedBalance = initialBalance;
+    for (int i = 0; i < writers; i++) {
+      expectedTransactions += registered[i];
+      expectedBalance += balanceChanges[i];
+    }
+
+    int nextId = manager.getWarehouse().getNextTransactionId();
+    int missing = 0;
+    for (int id = initialId; id < nextId; id++) {
+      try {
+        manager.getTransactionWithId(id);
+      } catch (Exception e) {
+        missing++;
+      }
+    }
+    double balance = manager.getAvailableBalance();
+    boolean balanceOk = Math.abs(balance - expectedBalance) <= 1e-6 * Math.max(1, Math.abs(expectedBalance));
+
+    System.out.printf("%d writers x %d operations, %d readers: %.1f ms%n", writers, operations, readers, elapsed / 1e6);
+    System.out.printf("transactions: %d registered, next ID advanced by %d, %d IDs missing%n",
+        expectedTransactions, nextId - initialId, missing);
+    System.out.printf("available balance: %.2f, expected %.2f%n", balance, expectedBalance);
+    System.out.printf("reader errors: %d%n", readerErrors.get());
+
+    boolean ok = nextId - initialId == expectedTransactions && missing == 0 && balanceOk && readerErrors.get() == 0;
+    System.out.println(ok ? "OK" : "LOST UPDATES");
+    if (!ok) {
+      System.exit(1);
+    }
+  }
+
+  private static void write(WarehouseManager manager, boolean unlocked, int writer, int operations,
+      double[] balanceChanges, int[] registered) throws Exception {
+    Random random = new Random(1000 + writer);
+    Warehouse warehouse = manager.getWarehouse();
+    String partnerId = null;
+    Partner partner = null;
+    int products = new DatasetGenerator(10000, 0).getSimpleProductCount();
+
+    for (int i = 0; i < operations; i++) {
+      if (i % 64 == 0) {
+        partnerId = "STRESS" + writer + "-" + i / 64;
+        manager.registerPartner(partnerId, "Writer " + writer, "Thread " + writer);
+        partner = warehouse.getPartnerWithId(partnerId);
+      }
+      String productId = DatasetGenerator.simpleProductId(random.nextInt(products));
+
+      if (i % 2 == 0) {
+        int price = 1 + random.nextInt(500);
+        int quantity = 1 + random.nextInt(10);
+        if (unlocked) {
+          warehouse.registerAcquisitionTransaction(partner, warehouse.getProductWithId(productId), price, quantity);
+        } else {
+          manager.registerAcquisitionTransaction(partnerId, productId, price, quantity);
+        }
+        balanceChanges[writer] -= price * quantity;
+        registered[writer]++;
+        continue;
+      }
+
+      try {
+        if (unlocked) {
+          warehouse.registerSaleTransaction(partner, warehouse.getProductWithId(productId), 10, 1);
+        } else {
+          manager.registerSaleTransaction(partnerId, productId, 10, 1);
+        }
+      } catch (UnavailableProductQuantityException e) {
+        continue;
+      }
+      registered[writer]++;
+
+      if (i % 4 == 1) {
+        // only this writer sells to its partner: the last sale is the one just registered
+        Collection<Sale> sales = unlocked ? partner.getSales() : manager.getSalesFromPartner(partnerId);
+        Sale sale = null;
+        for (Sale s : sales) {
+          sale = s;
+        }
+        if (unlocked) {
+          warehouse.pay(sale);
+        } else {
+          manager.pay(sale.getId());
+        }
+        balanceChanges[writer] += sale.getAmountPaid();
+      }
+    }
+  }
+
+  private static void read(WarehouseManager manager, Random random, int initialId) {
+    double sink = 0;
+
+    for (Batch batch : manager.getBatches()) {
+      sink += batch.getPrice();
+    }
+    for (Product product : manager.getProducts()) {
+      sink += product.getTotalStock();
+    }
+    sink += manager.getAccountingBalance();
+    try {
+      sink += manager.getTransactionWithId(initialId + random.nextInt(1000)).getId();
+    } catch (Exception e) {
+      // not registered yet
+    }
+
+    if (Double.isNaN(sink)) {
+      throw new IllegalStateException();
+    }
+  }
+}
@@ -0,0 +1,200 @@
+package ggc.core;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import ggc.core.exception.BadEntryException;
+import ggc.core.exception.DuplicatePartnerException;
+import ggc.core.exception.UnavailableProductQuantityException;
+import ggc.core.exception.UnknownPartnerException;
+import ggc.core.exception.UnknownProductException;
+import ggc.core.exception.UnknownTransactionException;
+
+/**
+ * Generates synthetic warehouses for the benchmarks. The same seed always
+ * produces the same data.
+ *
+ * Each dataset has one simple product per 10 batches, one aggregate
+ * product (made of two simple products) per 10 simple products and one
+ * partner per 100 batches, with a minimum of 10 of each.
+ */
+public class DatasetGenerator {
+
+  private Random _random;
+  private int _batches;
+  private int _partners;
+  private int _simpleProducts;
+  private int _aggregateProducts;
+
+  /**
+   * @param batches number of batches in the dataset.
+   * @param seed random seed.
+   */
+  public DatasetGenerator(int batches, long seed) {
+    _random = new Random(seed);
+    _batches = batches;
+    _partners = Math.max(10, batches / 100);
+    _simpleProducts = Math.max(10, batches / 10);
+    _aggregateProducts = Math.max(10, _simpleProducts / 10);
+  }
+
+  static String partnerId(int i) {
+    return "M" + i;
+  }
+
+  static String simpleProductId(int i) {
+    return "S" + i;
+  }
+
+  static String aggregateProductId(int i) {
+    return "A" + i;
+  }
+
+  int getPartnerCount() {
+    return _partners;
+  }
+
+  int getSimpleProductCount() {
+    return _simpleProducts;
+  }
+
+  int getAggregateProductCount() {
+    return _aggregateProducts;
+  }
+
+  /**
+   * Writes the dataset in the import file format.
+   *
+   * @param file destination file.
+   * @throws IOException
+   */
+  public void writeImportFile(Path file) throws IOException {
+    try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+      for (String line : importLines()) {
+        writer.write(line);
+        writer.newLine();
+      }
+    }
+  }
+
+  /**
+   * @return the dataset as import file lines.
+   */
+  public List<String> importLines() {
+    List<String> lines = new ArrayList<String>();
+
+    for (int i = 0; i < _partners; i++) {
+      lines.add("PARTNER|" + partnerId(i) + "|Partner " + i + "|Rua " + i + ", Lisboa");
+    }
+
+    int aggregateBatches = _batches / 10;
+    for (int i = 0; i < _batches - aggregateBatches; i++) {
+      int product = i < _simpleProducts ? i : _random.nextInt(_simpleProducts);
+      lines.add("BATCH_S|" + simpleProductId(product) + "|" + partnerId(_random.nextInt(_partners)) + "|"
+          + (1 + _random.nextInt(500)) + "|" + (1 + _random.nextInt(100)));
+    }
+
+    for (int i = 0; i < aggregateBatches; i++) {
+      int product = i < _aggregateProducts ? i : _random.nextInt(_aggregateProducts);
+      int first = (product * 2) % _simpleProducts;
+      int second = (product * 2 + 1) % _simpleProducts;
+      lines.add("BATCH_M|" + aggregateProductId(product) + "|" + partnerId(_random.nextInt(_partners)) + "|"
+          + (500 + _random.nextInt(500)) + "|" + (1 + _random.nextInt(20)) + "|0.1|"
+          + simpleProductId(first) + ":1#" + simpleProductId(second) + ":2");
+    }
+
+    return lines;
+  }
+
+  /**
+   * Generates transaction history to follow the dataset's import lines:
+   * acquisitions and sales by credit of the product just acquired in equal
+   * numbers, every other sale paid, and the date advanced every 1000
+   * transactions.
+   *
+   * @param transactions number of transactions.
+   * @return the history as import file lines.
+   */
+  public List<String> historyLines(int transactions) {
+    List<String> lines = new ArrayList<String>();
+    String product = null;
+
+    for (int i = 0; i < transactions; i++) {
+      String partner = partnerId(_random.nextInt(_partners));
+      if (i % 2 == 0) {
+        product = simpleProductId(_random.nextInt(_simpleProducts));
+        lines.add("ACQUISITION|" + partner + "|" + product + "|" + (1 + _random.nextInt(500)) + "|" + (1 + _random.nextInt(10)));
+      } else {
+        lines.add("SALE|" + partner + "|" + product + "|" + _random.nextInt(20) + "|1");
+        if (i % 4 == 1) {
+          lines.add("PAYMENT|" + i);
+        }
+      }
+      if (i % 1000 == 999) {
+        lines.add("ADVANCE|1");
+      }
+    }
+
+    return lines;
+  }
+
+  /**
+   * Builds a warehouse holding the dataset, going through the parser.
+   *
+   * @param scratch temporary import file.
+   * @return the new warehouse.
+   * @throws IOException
+   */
+  public Warehouse buildWarehouse(Path scratch) throws IOException {
+    writeImportFile(scratch);
+    Warehouse warehouse = new Warehouse();
+
+    try {
+      warehouse.importFile(scratch.toString(), 1);
+    } catch (BadEntryException | DuplicatePartnerException | UnknownPartnerException | UnknownProductException e) {
+      throw new IOException(e);
+    } finally {
+      Files.deleteIfExists(scratch);
+    }
+
+    return warehouse;
+  }
+
+  /**
+   * Adds transaction history to a warehouse: acquisitions and sales by
+   * credit in equal numbers, with every other sale paid.
+   *
+   * @param warehouse the warehouse.
+   * @param transactions number of transactions to add.
+   */
+  public void addHistory(Warehouse warehouse, int transactions) {
+    try {
+      for (int i = 0; i < transactions; i++) {
+        Partner partner = warehouse.getPartnerWithId(partnerId(_random.nextInt(_partners)));
+        Product product = warehouse.getProductWithId(simpleProductId(_random.nextInt(_simpleProducts)));
+
+        if (i % 2 == 0 || product.getTotalStock() == 0) {
+          warehouse.registerAcquisitionTransaction(partner, product, 1 + _random.nextInt(500), 1 + _random.nextInt(10));
+        } else {
+          warehouse.registerSaleTransaction(partner, product, warehouse.getDate().getDays() + _random.nextInt(20), 1);
+          if (i % 4 == 1) {
+            warehouse.pay(warehouse.getTransactionWithId(warehouse.getTransactions().size() - 1));
+          }
+        }
+      }
+    } catch (UnknownPartnerException | UnknownProductException | UnavailableProductQuantityException
+        | UnknownTransactionException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  Random getRandom() {
+    return _random;
+  }
+}
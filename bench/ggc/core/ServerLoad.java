@@ -0,0 +1,156 @@
+package ggc.core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ggc.server.WarehouseServer;
+
+/**
+ * Loopback load test for WarehouseServer.
+ *
+ * Serves a synthetic warehouse (see DatasetGenerator) on a free loopback
+ * port and opens a number of client connections, each sending requests
+ * one at a time and waiting for every response: half are queries (a
+ * partner, a transaction, a product's batches, the balance), half are
+ * acquisitions and sales. Reports the throughput and the latency
+ * percentiles, and fails if any request got an unexpected error.
+ *
+ *   javac -encoding UTF-8 -d out -sourcepath src:bench bench/ggc/core/ServerLoad.java
+ *   java -cp out ggc.core.ServerLoad [connections] [requests per connection] [batches]
+ */
+public class ServerLoad {
+
+  public static void main(String[] args) throws Exception {
+    int connections = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+    int requests = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+    int scale = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+
+    DatasetGenerator generator = new DatasetGenerator(scale, 20211206L);
+    Path file = Files.createTempFile("ggc-load", ".txt");
+    generator.writeImportFile(file);
+    WarehouseManager manager = new WarehouseManager();
+    manager.importFile(file.toString());
+    Files.delete(file);
+
+    try (WarehouseServer server = new WarehouseServer(manager, 0)) {
+      server.start();
+
+      CountDownLatch start = new CountDownLatch(1);
+      AtomicInteger errors = new AtomicInteger();
+      long[][] latencies = new long[connections][];
+      List<Thread> clients = new ArrayList<Thread>();
+      for (int i = 0; i < connections; i++) {
+        int client = i;
+        clients.add(new Thread(() -> {
+          try {
+            start.await();
+            latencies[client] = run(server.getPort(), generator, new Random(client), requests, errors);
+          } catch (Exception e) {
+            e.printStackTrace();
+            errors.incrementAndGet();
+            latencies[client] = new long[0];
+          }
+        }, "client-" + i));
+      }
+
+      long begin = System.nanoTime();
+      clients.forEach(Thread::start);
+      start.countDown();
+      for (Thread client : clients) {
+        client.join();
+      }
+      long elapsed = System.nanoTime() - begin;
+
+      long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+      System.out.printf("%d connections x %d requests: %.1f ms, %.0f requests/s%n",
+          connections, requests, elapsed / 1e6, all.length / (elapsed / 1e9));
+      if (all.length > 0) {
+        System.out.printf("latency us: p50 %.1f, p99 %.1f, max %.1f%n",
+            percentile(all, 0.50) / 1e3, percentile(all, 0.99) / 1e3, all[all.length - 1] / 1e3);
+      }
+      System.out.printf("errors: %d%n", errors.get());
+      System.out.println(errors.get() == 0 ? "OK" : "FAILED");
+      if (errors.get() > 0) {
+        System.exit(1);
+      }
+    }
+  }
+
+  /** @return the latency of every request, in nanoseconds. */
+  private static long[] run(int port, DatasetGenerator generator, Random random, int requests, AtomicInteger errors)
+      throws IOException {
+    long[] latencies = new long[requests];
+
+    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+      socket.setTcpNoDelay(true);
+      BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+      BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+
+      for (int i = 0; i < requests; i++) {
+        String request = request(generator, random);
+        long begin = System.nanoTime();
+        out.write(request);
+        out.newLine();
+        out.flush();
+
+        String status = in.readLine();
+        if (status == null) {
+          throw new IOException("connection closed");
+        }
+        if (status.startsWith("OK|")) {
+          for (int lines = Integer.parseInt(status.substring(3)); lines > 0; lines--) {
+            in.readLine();
+          }
+        } else if (!status.startsWith("ERROR|UNAVAILABLE_PRODUCT|") && !status.startsWith("ERROR|UNKNOWN_TRANSACTION|")) {
+          // sales may find no stock, and lookups may pick transactions not registered yet
+          System.err.println(request + " -> " + status);
+          errors.incrementAndGet();
+        }
+        latencies[i] = System.nanoTime() - begin;
+      }
+
+      out.write("QUIT");
+      out.newLine();
+      out.flush();
+      in.readLine();
+    }
+    return latencies;
+  }
+
+  private static String request(DatasetGenerator generator, Random random) {
+    String partner = DatasetGenerator.partnerId(random.nextInt(generator.getPartnerCount()));
+    String product = DatasetGenerator.simpleProductId(random.nextInt(generator.getSimpleProductCount()));
+
+    switch (random.nextInt(6)) {
+      case 0:
+        return "SHOW_PARTNER|" + partner;
+      case 1:
+        return "TRANSACTION|" + random.nextInt(1000);
+      case 2:
+        return random.nextBoolean() ? "BATCHES_BY_PRODUCT|" + product : "BALANCE";
+      case 3:
+      case 4:
+        return "ACQUISITION|" + partner + "|" + product + "|" + (1 + random.nextInt(500)) + "|" + (1 + random.nextInt(10));
+      default:
+        return "SALE|" + partner + "|" + product + "|10|1";
+    }
+  }
+
+  private static double percentile(long[] sorted, double fraction) {
+    return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+  }
+}
@@ -0,0 +1,574 @@
+package ggc.core;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import ggc.core.exception.UnavailableFileException;
+import ggc.core.exception.UnavailableProductQuantityException;
+import ggc.core.exception.UnknownPartnerException;
+import ggc.core.exception.UnknownProductException;
+
+/**
+ * Micro-benchmarks for the hot paths of the warehouse engine.
+ *
+ * Every benchmark builds a fresh synthetic warehouse (see DatasetGenerator)
+ * for each scale, runs a few warm-up rounds and then reports the average
+ * time per operation over the measured rounds.
+ *
+ * Build and run from the repository root:
+ *
+ *   javac -encoding UTF-8 -d out -sourcepath src:bench bench/ggc/core/WarehouseBenchmark.java
+ *   java -cp out ggc.core.WarehouseBenchmark [scales] [benchmark...]
+ *
+ * scales is a comma separated list of dataset sizes (default 1000,10000,100000);
+ * benchmarks are selected by name (default: all).
+ */
+public class WarehouseBenchmark {
+
+  /** Rounds run before measuring. */
+  private static final int WARMUP_ROUNDS = 3;
+
+  /** Rounds measured. */
+  private static final int MEASURED_ROUNDS = 5;
+
+  /** Operations per round for the per-operation benchmarks. */
+  private static final int OPERATIONS = 1000;
+
+  /** Seed for every dataset. */
+  private static final long SEED = 20211206L;
+
+  /** Keeps results alive so the JIT cannot drop the measured work. */
+  private static volatile double _sink;
+
+  /** A benchmark: builds its fixture for a scale and returns the measured round. */
+  interface Benchmark {
+    Round setUp(int scale, Path directory) throws Exception;
+  }
+
+  /** One measured round, reporting how many operations it did. */
+  interface Round {
+    int run() throws Exception;
+  }
+
+  private static final String[] NAMES = {
+    "parseFile", "parseFileParallel", "importHistory", "registerAcquisitionTransaction", "truckAcquisition", "bulkAcquisition", "registerSaleTransaction", "orderSale", "basketSale", "registerBreakdownTransaction",
+    "getAccountingBalance", "getAllBatchesSorted", "save", "load", "saveBinary", "loadBinary",
+    "loadLazy", "journaledAcquisition", "sequencedAcquisition", "captureSnapshot", "saveDelta",
+  };
+
+  public static void main(String[] args) throws Exception {
+    int[] scales = { 1000, 10000, 100000 };
+    List<String> selected = new ArrayList<String>();
+
+    if (args.length > 0) {
+      String[] fields = args[0].split(",");
+      scales = new int[fields.length];
+      for (int i = 0; i < fields.length; i++) {
+        scales[i] = Integer.parseInt(fields[i].trim());
+      }
+    }
+    for (int i = 1; i < args.length; i++) {
+      selected.add(args[i]);
+    }
+
+    Path directory = Files.createTempDirectory("ggc-bench");
+    System.out.printf("%-32s %10s %14s %14s%n", "benchmark", "scale", "ns/op", "ops/s");
+
+    for (String name : NAMES) {
+      if (!selected.isEmpty() && !selected.contains(name)) {
+        continue;
+      }
+      for (int scale : scales) {
+        try {
+          run(name, benchmark(name), scale, directory);
+        } catch (StackOverflowError e) {
+          System.out.printf("%-32s %10d %29s%n", name, scale, "StackOverflowError");
+        }
+      }
+    }
+
+    try (Stream<Path> files = Files.walk(directory)) {
+      files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  private static void run(String name, Benchmark benchmark, int scale, Path directory) throws Exception {
+    for (int i = 0; i < WARMUP_ROUNDS; i++) {
+      benchmark.setUp(scale, directory).run();
+    }
+
+    long elapsed = 0;
+    long operations = 0;
+    for (int i = 0; i < MEASURED_ROUNDS; i++) {
+      Round round = benchmark.setUp(scale, directory);
+      long start = System.nanoTime();
+      operations += round.run();
+      elapsed += System.nanoTime() - start;
+    }
+
+    double nanosPerOperation = (double) elapsed / operations;
+    System.out.printf("%-32s %10d %14.1f %14.1f%n", name, scale, nanosPerOperation, 1e9 / nanosPerOperation);
+  }
+
+  private static Benchmark benchmark(String name) {
+    switch (name) {
+      case "parseFile":
+        return WarehouseBenchmark::parseFile;
+      case "parseFileParallel":
+        return (scale, directory) -> parseFile(scale, directory, Runtime.getRuntime().availableProcessors());
+      case "importHistory":
+        return WarehouseBenchmark::importHistory;
+      case "registerAcquisitionTransaction":
+        return WarehouseBenchmark::registerAcquisitionTransaction;
+      case "truckAcquisition":
+        return (scale, directory) -> truckAcquisition(scale, directory, false);
+      case "bulkAcquisition":
+        return (scale, directory) -> truckAcquisition(scale, directory, true);
+      case "registerSaleTransaction":
+        return WarehouseBenchmark::registerSaleTransaction;
+      case "orderSale":
+        return (scale, directory) -> orderSale(scale, directory, false);
+      case "basketSale":
+        return (scale, directory) -> orderSale(scale, directory, true);
+      case "registerBreakdownTransaction":
+        return WarehouseBenchmark::registerBreakdownTransaction;
+      case "getAccountingBalance":
+        return WarehouseBenchmark::getAccountingBalance;
+      case "getAllBatchesSorted":
+        return WarehouseBenchmark::getAllBatchesSorted;
+      case "save":
+        return WarehouseBenchmark::save;
+      case "load":
+        return WarehouseBenchmark::load;
+      case "saveBinary":
+        return (scale, directory) -> save(scale, directory, true);
+      case "loadBinary":
+        return (scale, directory) -> load(scale, directory, true);
+      case "loadLazy":
+        return WarehouseBenchmark::loadLazy;
+      case "journaledAcquisition":
+        return WarehouseBenchmark::journaledAcquisition;
+      case "sequencedAcquisition":
+        return WarehouseBenchmark::sequencedAcquisition;
+      case "captureSnapshot":
+        return WarehouseBenchmark::captureSnapshot;
+      case "saveDelta":
+        return WarehouseBenchmark::saveDelta;
+      default:
+        throw new IllegalArgumentException("Unknown benchmark: " + name);
+    }
+  }
+
+  /** Imports a file with scale batches; one operation per line, so ops/s is lines/s. */
+  private static Round parseFile(int scale, Path directory) throws IOException {
+    return parseFile(scale, directory, 1);
+  }
+
+  /** As parseFile, converting lines with the given number of worker threads. */
+  private static Round parseFile(int scale, Path directory, int workers) throws IOException {
+    DatasetGenerator generator = new DatasetGenerator(scale, SEED);
+    Path file = directory.resolve("import-" + scale + ".txt");
+    if (!Files.exists(file)) {
+      generator.writeImportFile(file);
+    }
+
+    return () -> new Parser(new Warehouse(), workers).parseFile(file.toString());
+  }
+
+  /** Imports a file with scale batches followed by scale transactions; one operation per line. */
+  private static Round importHistory(int scale, Path directory) throws IOException {
+    DatasetGenerator generator = new DatasetGenerator(scale, SEED);
+    Path file = directory.resolve("history-" + scale + ".txt");
+    if (!Files.exists(file)) {
+      List<String> lines = generator.importLines();
+      lines.addAll(generator.historyLines(scale));
+      Files.write(file, lines, StandardCharsets.UTF_8);
+    }
+
+    return () -> new Parser(new Warehouse()).parseFile(file.toString());
+  }
+
+  /** Registers acquisitions on a warehouse with scale batches. */
+  private static Round registerAcquisitionTransaction(int scale, Path directory) throws IOException {
+    DatasetGenerator generator = new DatasetGenerator(scale, SEED);
+    Warehouse warehouse = generator.buildWarehouse(directory.resolve("fixture.txt"));
+    Random random = generator.getRandom();
+    Partner[] partners = partners(warehouse, generator);
+    Product[] products = simpleProducts(warehouse, generator);
+
+    return () -> {
+      for (int i = 0; i < OPERATIONS; i++) {
+        warehouse.registerAcquisitionTransaction(partners[random.nextInt(partners.length)],
+            products[random.nextInt(products.length)], 1 + random.nextInt(500), 1 + random.nextInt(10));
+      }
+      return OPERATIONS;
+    };
+  }
+
+  /** Registers sales by credit, each taking a few batches, on a warehouse with scale batches. */
+  /**
+   * Receives a truck of OPERATIONS acquisitions from a few partners, of products drawn
+   * from a hundred, through a manager on a warehouse with scale batches: one call per
+   * acquisition, or one bulk call for the truck; one operation per acquisition.
+   */
+  private static Round truckAcquisition(int scale, Path directory, boolean bulk) throws Exception {
+    DatasetGenerator generator = new DatasetGenerator(scale, SEED);
+    WarehouseManager manager = managerWithHistory(scale, directory);
+    Random random = generator.getRandom();
+    List<AcquisitionLine> truck = new ArrayList<AcquisitionLine>();
+    int firstProduct = random.nextInt(generator.getSimpleProductCount());
+    for (int i = 0; i < OPERATIONS; i++) {
+      truck.add(new AcquisitionLine(DatasetGenerator.partnerId(random.nextInt(Math.min(5, generator.getPartnerCount()))),
+          DatasetGenerator.simpleProductId((firstProduct + random.nextInt(100)) % generator.getSimpleProductCount()),
+          1 + random.nextInt(500), 1 + random.nextInt(10)));
+    }
+
+    return () -> {
+      if (bulk) {
+        manager.registerAcquisitionTransactions(truck);
+      } else {
+        for (AcquisitionLine line : truck) {
+          manager.registerAcquisitionTransaction(line.getPartnerId(), line.getProductId(), line.getPrice(), line.getQuantity());
+        }
+      }
+      return OPERATIONS;
+    };
+  }
+
+  private static Round registerSaleTransaction(int scale, Path directory) throws IOException {
+    DatasetGenerator generator = new DatasetGenerator(scale, SEED);
+    Warehouse warehouse = generator.buildWarehouse(directory.resolve("fixture.txt"));
+    Random random = generator.getRandom();
+    Partner[] partners = partners(warehouse, generator);
+    Product[] products = simpleProducts(warehouse, generator);
+
+    return () -> {
+      int operations = 0;
+      for (int i = 0; i < OPERATIONS; i++) {
+        Product product = products[random.nextInt(products.length)];
+        int amount = Math.min(product.getTotalStock(), 1 + random.nextInt(150));
+        if (amount > 0) {
+          warehouse.registerSaleTransaction(partners[random.nextInt(partners.length)], product, 10, amount);
+          operations++;
+        }
+      }
+      return Math.max(operations, 1);
+    };
+  }
+
+  /** Breaks down aggregate products on a warehouse with scale batches. */
+  /**
+   * Sells OPERATIONS / 10 orders of 10 products each through a manager on a warehouse
+   * with scale batches: one call per line, or one basket call per order; one operation
+   * per line.
+   */
+  private static Round orderSale(int scale, Path directory, boolean basket) throws Exception {
+    DatasetGenerator generator = new DatasetGenerator(scale, SEED);
+    WarehouseManager manager = managerWithHistory(scale, directory);
+    Random random = generator.getRandom();
+    List<List<SaleLine>> orders = new ArrayList<List<SaleLine>>();
+    for (int i = 0; i < OPERATIONS / 10; i++) {
+      String partner = DatasetGenerator.partnerId(random.nextInt(generator.getPartnerCount()));
+      List<SaleLine> order = new ArrayList<SaleLine>();
+      for (int j = 0; j < 10; j++) {
+        order.add(new SaleLine(partner, DatasetGenerator.simpleProductId(random.nextInt(generator.getSimpleProductCount())), 10, 1));
+      }
+      orders.add(order);
+    }
+
+    return () -> {
+      int lines = 0;
+      for (List<SaleLine> order : orders) {
+        try {
+          if (basket) {
+            manager.registerSaleTransactions(order);
+          } else {
+            for (SaleLine line : order) {
+              manager.registerSaleTransaction(line.getPartnerId(), line.getProductId(), line.getDeadline(), line.getAmount());
+            }
+          }
+        } catch (UnavailableProductQuantityException e) {
+          // sold out
+        }
+        lines += order.size();
+      }
+      return lines;
+    };
+  }
+
+  private static Round registerBreakdownTransaction(int scale, Path directory) throws IOException {
+    DatasetGenerator generator = new DatasetGenerator(scale, SEED);
+    Warehouse warehouse = generator.buildWarehouse(directory.resolve("fixture.txt"));
+    Random random = generator.getRandom();
+    Partner[] partners = partners(warehouse, generator);
+    Product[] products = aggregateProducts(warehouse, generator);
+
+    return () -> {
+      int operations = 0;
+      for (int i = 0; i < OPERATIONS; i++) {
+        Product product = products[random.nextInt(products.length)];
+        if (product.getTotalStock() > 0) {
+          try {
+            warehouse.registerBreakdownTransaction(partners[random.nextInt(partners.length)], product, 1);
+            operations++;
+          } catch (UnavailableProductQuantityException e) {
+            // components ran out: not measured
+          }
+        }
+      }
+      return Math.max(operations, 1);
+    };
+  }
+
+  /** Computes the accounting balance over scale transactions, half of them sales. */
+  private static Round getAccountingBalance(int scale, Path directory) throws IOException {
+    Warehouse warehouse = warehouseWithHistory(scale, directory);
+
+    return () -> {
+      double balance = 0;
+      for (int i = 0; i < 10; i++) {
+        balance += warehouse.getAccountingBalance();
+      }
+      blackhole(balance);
+      return 10;
+    };
+  }
+
+  /** Lists every batch of a warehouse with scale batches; one operation per batch. */
+  private static Round getAllBatchesSorted(int scale, Path directory) throws IOException {
+    DatasetGenerator generator = new DatasetGenerator(scale, SEED);
+    Warehouse warehouse = generator.buildWarehouse(directory.resolve("fixture.txt"));
+
+    return () -> {
+      int count = 0;
+      double total = 0;
+      for (Batch batch : warehouse.getAllBatchesSorted()) {
+        total += batch.getPrice();
+        count++;
+      }
+      blackhole(total);
+      return Math.max(count, 1);
+    };
+  }
+
+  /** Saves a warehouse with scale batches and scale transactions, with Java serialization; one operation per save. */
+  private static Round save(int scale, Path directory) throws Exception {
+    return save(scale, directory, false);
+  }
+
+  private static Round save(int scale, Path directory, boolean binary) throws Exception {
+    WarehouseManager manager = managerWithHistory(scale, directory);
+    manager.setBinarySnapshots(binary);
+    String file = directory.resolve("save-" + scale + (binary ? ".ggcb" : ".dat")).toString();
+
+    return () -> {
+      manager.saveAs(file);
+      return 1;
+    };
+  }
+
+  /** Loads a warehouse with scale batches and scale transactions, saved with Java serialization; one operation per load. */
+  private static Round load(int scale, Path directory) throws Exception {
+    return load(scale, directory, false);
+  }
+
+  private static Round load(int scale, Path directory, boolean binary) throws Exception {
+    String file = directory.resolve("load-" + scale + (binary ? ".ggcb" : ".dat")).toString();
+    if (!Files.exists(Path.of(file))) {
+      WarehouseManager manager = managerWithHistory(scale, directory);
+      manager.setBinarySnapshots(binary);
+      manager.saveAs(file);
+    }
+
+    return () -> {
+      try {
+        new WarehouseManager().load(file);
+      } catch (UnavailableFileException e) {
+        throw new IOException(e);
+      }
+      return 1;
+    };
+  }
+
+  /** Loads the binary snapshot of loadBinary without building its past transactions. */
+  private static Round loadLazy(int scale, Path directory) throws Exception {
+    load(scale, directory, true);
+    String file = directory.resolve("load-" + scale + ".ggcb").toString();
+
+    return () -> {
+      WarehouseManager manager = new WarehouseManager();
+      manager.setLazyLoading(true);
+      try {
+        manager.load(file);
+      } catch (UnavailableFileException e) {
+        throw new IOException(e);
+      }
+      return 1;
+    };
+  }
+
+  /**
+   * Registers acquisitions through a manager journaling every operation, forcing the
+   * journal every "journal.sync" operations (default 1); one operation per acquisition.
+   */
+  private static Round journaledAcquisition(int scale, Path directory) throws Exception {
+    DatasetGenerator generator = new DatasetGenerator(scale, SEED);
+    WarehouseManager manager = managerWithHistory(scale, directory);
+    manager.setBinarySnapshots(true);
+    manager.setJournalSyncInterval(Integer.getInteger("journal.sync", 1));
+    manager.saveAs(directory.resolve("journaled-" + scale + ".ggcb").toString());
+    Random random = generator.getRandom();
+
+    return () -> {
+      for (int i = 0; i < OPERATIONS; i++) {
+        manager.registerAcquisitionTransaction("M" + random.nextInt(generator.getPartnerCount()),
+            "S" + random.nextInt(generator.getSimpleProductCount()), 1 + random.nextInt(500), 1 + random.nextInt(10));
+      }
+      manager.closeJournal();
+      return OPERATIONS;
+    };
+  }
+
+  /**
+   * Registers acquisitions submitted by "sequencer.clients" clients (default 64), each
+   * on its own client thread, through a CommandSequencer; one operation per acquisition.
+   */
+  private static Round sequencedAcquisition(int scale, Path directory) throws Exception {
+    DatasetGenerator generator = new DatasetGenerator(scale, SEED);
+    WarehouseManager manager = managerWithHistory(scale, directory);
+    int clients = Integer.getInteger("sequencer.clients", 64);
+    Random random = generator.getRandom();
+    String[][] operations = new String[OPERATIONS][];
+    for (int i = 0; i < OPERATIONS; i++) {
+      operations[i] = new String[] { "M" + random.nextInt(generator.getPartnerCount()),
+          "S" + random.nextInt(generator.getSimpleProductCount()) };
+    }
+
+    return () -> {
+      try (CommandSequencer sequencer = new CommandSequencer(manager)) {
+        ExecutorService executor = CommandSequencer.newClientExecutor();
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        for (int c = 0; c < clients; c++) {
+          int client = c;
+          results.add(executor.submit(() -> {
+            for (int i = client; i < OPERATIONS; i += clients) {
+              String[] operation = operations[i];
+              sequencer.call(m -> {
+                m.registerAcquisitionTransaction(operation[0], operation[1], 10, 1);
+                return null;
+              });
+            }
+            return null;
+          }));
+        }
+        for (Future<?> result : results) {
+          result.get();
+        }
+        executor.shutdown();
+      }
+      return OPERATIONS;
+    };
+  }
+
+  /**
+   * Captures a warehouse with scale batches and scale transactions: the part of a
+   * background save that blocks the caller; one operation per capture.
+   */
+  private static Round captureSnapshot(int scale, Path directory) throws IOException {
+    Warehouse warehouse = warehouseWithHistory(scale, directory);
+
+    return () -> {
+      BinarySnapshot.capture(warehouse);
+      return 1;
+    };
+  }
+
+  /**
+   * Saves a warehouse with scale batches and scale transactions after a single
+   * acquisition, as a delta appended to a binary snapshot; one operation per save.
+   */
+  private static Round saveDelta(int scale, Path directory) throws Exception {
+    DatasetGenerator generator = new DatasetGenerator(scale, SEED);
+    WarehouseManager manager = managerWithHistory(scale, directory);
+    manager.setBinarySnapshots(true);
+    manager.setDeltaSaves(Integer.MAX_VALUE);
+    manager.saveAs(directory.resolve("delta-" + scale + ".ggcb").toString());
+    Random random = generator.getRandom();
+
+    return () -> {
+      manager.registerAcquisitionTransaction("M" + random.nextInt(generator.getPartnerCount()),
+          "S" + random.nextInt(generator.getSimpleProductCount()), 1 + random.nextInt(500), 1 + random.nextInt(10));
+      manager.save();
+      return 1;
+    };
+  }
+
+  private static Warehouse warehouseWithHistory(int scale, Path directory) throws IOException {
+    DatasetGenerator generator = new DatasetGenerator(scale, SEED);
+    Warehouse warehouse = generator.buildWarehouse(directory.resolve("fixture.txt"));
+    generator.addHistory(warehouse, scale);
+    return warehouse;
+  }
+
+  private static WarehouseManager managerWithHistory(int scale, Path directory) throws Exception {
+    DatasetGenerator generator = new DatasetGenerator(scale, SEED);
+    Path file = directory.resolve("fixture.txt");
+    generator.writeImportFile(file);
+
+    WarehouseManager manager = new WarehouseManager();
+    manager.importFile(file.toString());
+    Files.deleteIfExists(file);
+
+    generator.addHistory(manager.getWarehouse(), scale);
+    return manager;
+  }
+
+  private static Partner[] partners(Warehouse warehouse, DatasetGenerator generator) {
+    Partner[] partners = new Partner[generator.getPartnerCount()];
+    try {
+      for (int i = 0; i < partners.length; i++) {
+        partners[i] = warehouse.getPartnerWithId(DatasetGenerator.partnerId(i));
+      }
+    } catch (UnknownPartnerException e) {
+      throw new IllegalStateException(e);
+    }
+    return partners;
+  }
+
+  private static Product[] simpleProducts(Warehouse warehouse, DatasetGenerator generator) {
+    Product[] products = new Product[generator.getSimpleProductCount()];
+    try {
+      for (int i = 0; i < products.length; i++) {
+        products[i] = warehouse.getProductWithId(DatasetGenerator.simpleProductId(i));
+      }
+    } catch (UnknownProductException e) {
+      throw new IllegalStateException(e);
+    }
+    return products;
+  }
+
+  private static Product[] aggregateProducts(Warehouse warehouse, DatasetGenerator generator) {
+    Product[] products = new Product[generator.getAggregateProductCount()];
+    try {
+      for (int i = 0; i < products.length; i++) {
+        products[i] = warehouse.getProductWithId(DatasetGenerator.aggregateProductId(i));
+      }
+    } catch (UnknownProductException e) {
+      throw new IllegalStateException(e);
+    }
+    return products;
+  }
+
+  private static void blackhole(double value) {
+    _sink += value;
+  }
+}
@@ -1,30 +1,81 @@
 package ggc.app;
 
+import java.io.IOException;
+
 import pt.tecnico.uilib.Dialog;
 import pt.tecnico.uilib.menus.Menu;
 import ggc.core.WarehouseManager;
 import ggc.core.exception.ImportFileException;
+import ggc.server.WarehouseServer;
 
 /** Main driver for the management application. */
 public class App {
 
-  /** @param args command line arguments. */
+  /**
+   * Opens the menus or, with -Dserver=port, serves the warehouse on a
+   * loopback port instead, until the process is stopped.
+   *
+   * @param args command line arguments.
+   */
   public static void main(String[] args) {
+    WarehouseManager manager = new WarehouseManager();
+    manager.setBinarySnapshots("binary".equals(System.getProperty("snapshot")));
+    manager.setJournalSyncInterval(Integer.getInteger("journal", -1));
+    manager.setBackgroundSaves("background".equals(System.getProperty("save")));
+    manager.setDeltaSaves(Integer.getInteger("deltas", 0));
+    manager.setLazyLoading("lazy".equals(System.getProperty("load")));
+    manager.setImportWorkers(Integer.getInteger("import.workers", 1));
+
+    String datafile = System.getProperty("import");
+    if (datafile != null) {
+      try {
+        manager.importFile(datafile);
+      } catch (ImportFileException e) {
+        // no behavior described: just present the problem
+        e.printStackTrace();
+      }
+    }
+
+    Integer port = Integer.getInteger("server");
+    if (port != null) {
+      serve(manager, port);
+      return;
+    }
+
     try (var ui = Dialog.UI) {
-      WarehouseManager manager = new WarehouseManager();
+      Menu menu = new ggc.app.main.Menu(manager);
+      menu.open();
+      shutDown(manager);
+    }
+  }
 
-      String datafile = System.getProperty("import");
-      if (datafile != null) {
+  private static void serve(WarehouseManager manager, int port) {
+    try {
+      WarehouseServer server = new WarehouseServer(manager, port);
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
         try {
-          manager.importFile(datafile);
-        } catch (ImportFileException e) {
-          // no behavior described: just present the problem
+          server.close();
+        } catch (IOException e) {
           e.printStackTrace();
         }
-      }
+        shutDown(manager);
+      }));
+      server.start();
+      System.out.println("Serving on port " + server.getPort());
+      server.awaitClose();
+    } catch (IOException | InterruptedException e) {
+      // no behavior described: just present the problem
+      e.printStackTrace();
+    }
+  }
 
-      Menu menu = new ggc.app.main.Menu(manager);
-      menu.open();
+  private static void shutDown(WarehouseManager manager) {
+    try {
+      manager.awaitSave();
+      manager.closeJournal();
+    } catch (IOException e) {
+      // no behavior described: just present the problem
+      e.printStackTrace();
     }
   }
 
@@ -1,5 +1,7 @@
 package ggc.app.main;
 
+import java.io.IOException;
+
 import pt.tecnico.uilib.menus.Command;
 import pt.tecnico.uilib.menus.CommandException;
 
@@ -28,7 +30,10 @@ class DoOpenFile extends Command<WarehouseManager> {
       throw new FileOpenFailedException(ufe.getFilename());
     } catch (ClassNotFoundException e) {
       e.printStackTrace();
-    } 
+    } catch (IOException e) {
+      // the previous save failed and the current state was kept: just present the problem
+      e.printStackTrace();
+    }
   }
 
 }
@@ -0,0 +1,39 @@
+package ggc.core;
+
+/**
+ * One line of a bulk acquisition: a quantity of a product bought from a
+ * partner at a price.
+ */
+public class AcquisitionLine {
+    private String _partnerId;
+    private String _productId;
+    private double _price;
+    private int _quantity;
+
+    public AcquisitionLine(String partnerId, String productId, double price, int quantity) {
+        _partnerId = partnerId;
+        _productId = productId;
+        _price = price;
+        _quantity = quantity;
+    }
+
+    String getPartnerId() {
+        return _partnerId;
+    }
+
+    String getProductId() {
+        return _productId;
+    }
+
+    double getPrice() {
+        return _price;
+    }
+
+    int getQuantity() {
+        return _quantity;
+    }
+
+    public String toString() {
+        return _partnerId + "|" + _productId + "|" + _price + "|" + _quantity;
+    }
+}
@@ -1,10 +1,21 @@
 package ggc.core;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.List;
+
 public class AggregateProduct extends Product{
+
+    /** Serial number for serialization. */
+    private static final long serialVersionUID = -2069510433491521329L;
     
     private final int N = 5;
     private Recipe _recipe;
-    
+
+    /** The recipe flattened for breakdowns, built with the recipe. */
+    private transient Product[] _componentProducts;
+    private transient int[] _componentQuantities;
+
 
     AggregateProduct(String id) {
         super(id);
@@ -16,6 +27,42 @@ public class AggregateProduct extends Product{
 
     void setRecipe(Recipe recipe) {
         _recipe = recipe;
+        flattenRecipe();
+    }
+
+    private void flattenRecipe() {
+        List<Component> components = _recipe.getComponents();
+        int count = components.size();
+        _componentProducts = new Product[count];
+        _componentQuantities = new int[count];
+        for(int i = 0; i < count; i++) {
+            _componentProducts[i] = components.get(i).getProduct();
+            _componentQuantities[i] = components.get(i).getQuantity();
+        }
+    }
+
+    int getComponentCount() {
+        return _componentProducts.length;
+    }
+
+    Product getComponentProduct(int i) {
+        return _componentProducts[i];
+    }
+
+    int getComponentQuantity(int i) {
+        return _componentQuantities[i];
+    }
+
+    /**
+     * Called with the component locked.
+     *
+     * @return the unit price a component is valued at when this product is
+     *         broken down: its cheapest batch's, or its all-time high when
+     *         it has no batches.
+     */
+    double getComponentPrice(int i) {
+        Product product = _componentProducts[i];
+        return product.getBatches().isEmpty() ? product.getAllTimeHigh() : product.getMinPrice();
     }
 
     Recipe getRecipe() {
@@ -29,4 +76,9 @@ public class AggregateProduct extends Product{
     public String toString() {
         return super.toString() + "|" + _recipe.toString();
     }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        flattenRecipe();
+    }
 }
@@ -1,6 +1,9 @@
 package ggc.core;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 
@@ -10,6 +13,9 @@ import java.io.Serializable;
  */
 public class Batch implements Serializable {
 
+    /** Serial number for serialization. */
+    private static final long serialVersionUID = 4764985802623303414L;
+
     /** Batch's price. */
     private double _price;
 
@@ -22,6 +28,12 @@ public class Batch implements Serializable {
     /** Partner associated to the batch. */
     private Partner _partner;
 
+    /** Source of creation numbers. */
+    private static final AtomicLong NEXT_SERIAL = new AtomicLong();
+
+    /** Creation number, telling apart batches that are otherwise equal. */
+    private transient long _serial = NEXT_SERIAL.incrementAndGet();
+
     Batch(double price, int quantity, Product product) {
         _price = price;
         _quantity = quantity;
@@ -83,8 +95,17 @@ public class Batch implements Serializable {
         return _quantity;
     }
 
+    long getSerial() {
+        return _serial;
+    }
+
     void removeQuantity(int quantity) {
         _quantity -= quantity;
         _product.removeStock(quantity);
     }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        _serial = NEXT_SERIAL.incrementAndGet();
+    }
 }
@@ -3,6 +3,11 @@ package ggc.core;
 import java.io.Serializable;
 import java.util.Comparator;
 
+/**
+ * Orders batches by product, partner, price and quantity. Distinct batches
+ * never compare equal, so that none is dropped from the sorted sets when
+ * a partial sale leaves it looking like another.
+ */
 public class BatchComparator implements Comparator<Batch>, Serializable {
     public int compare(Batch b1, Batch b2) {
         int diff = b1.getProduct().getId().compareToIgnoreCase(b2.getProduct().getId());
@@ -15,12 +20,17 @@ public class BatchComparator implements Comparator<Batch>, Serializable {
             return diff;
         }
 
-        diff = (int)(b1.getPrice() - b2.getPrice());
+        diff = Double.compare(b1.getPrice(), b2.getPrice());
         if (diff != 0) {
             return diff;
         }
 
-        return (int)(b1.getQuantity() - b2.getQuantity()); 
+        diff = Integer.compare(b1.getQuantity(), b2.getQuantity());
+        if (diff != 0) {
+            return diff;
+        }
+
+        return Long.compare(b1.getSerial(), b2.getSerial());
     }
     
 }
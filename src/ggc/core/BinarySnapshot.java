@@ -0,0 +1,1109 @@
+package ggc.core;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleConsumer;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary image of a warehouse, an alternative to Java serialization.
+ *
+ * Partners and products are written once, as dictionaries; everything else
+ * refers to them by index. Batches, transactions, breakdown lines and
+ * notifications are stored column by column as primitive arrays, so
+ * writing and reading them needs neither reflection nor recursion.
+ *
+ * A snapshot is taken in two steps: capture copies the warehouse state
+ * into the arrays, and writeTo stores them in a file. Reading maps the
+ * file and rebuilds the warehouse with restore.
+ *
+ * A file may also hold deltas after the snapshot. captureChanges copies
+ * only what changed since the last checkpoint: changed partners and
+ * products, with all their notifications, opt-outs and batches, plus the
+ * transactions registered or paid since. Partners and products that are
+ * only referred to are listed by ID after the records. appendTo adds a
+ * delta, with a checksum, to the file; restore applies the deltas in
+ * order, and reading stops at the first incomplete one.
+ */
+public class BinarySnapshot {
+
+    /** File signature, "GGCB". */
+    static final int MAGIC = 0x47474342;
+
+    /** Format version. */
+    static final int VERSION = 1;
+
+    /** Signature of a delta section, "GGCD". */
+    static final int DELTA_MAGIC = 0x47474344;
+
+    private static final byte NORMAL = 0;
+    private static final byte SELECTION = 1;
+    private static final byte ELITE = 2;
+
+    private static final byte SIMPLE = 0;
+    private static final byte AGGREGATE = 1;
+
+    private static final byte ACQUISITION = 0;
+    private static final byte SALE_BY_CREDIT = 1;
+    private static final byte BREAKDOWN = 2;
+
+    /** Payment date of transactions that were not paid. */
+    private static final int NO_DATE = -1;
+
+    /** Buffer size used when writing. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private int _date;
+    private int _nextTransactionId;
+    private double _availableBalance;
+
+    /* Partners, in registration order. */
+    private String[] _partnerIds;
+    private String[] _partnerNames;
+    private String[] _partnerAddresses;
+    private byte[] _partnerStatus;
+    private double[] _partnerPoints;
+    private double[] _partnerAcquisitionsValue;
+    private double[] _partnerBaseValues;
+    private double[] _partnerTotalSalesValue;
+
+    /* Products, in ID order. */
+    private String[] _productIds;
+    private byte[] _productKinds;
+    private int[] _productStock;
+    private double[] _productAllTimeHigh;
+
+    /* Recipes; components of recipe i are at [_recipeStart[i], _recipeStart[i + 1]). */
+    private int[] _recipeProduct;
+    private double[] _recipeAlpha;
+    private int[] _recipeStart;
+    private int[] _componentProduct;
+    private int[] _componentQuantity;
+
+    /* Notification opt-outs. */
+    private int[] _optOutProduct;
+    private int[] _optOutPartner;
+
+    /* Batches. */
+    private int[] _batchProduct;
+    private int[] _batchPartner;
+    private double[] _batchPrice;
+    private int[] _batchQuantity;
+
+    /* Transactions, in ID order. Once read, these columns are views of the mapped file, so transactions can be built one at a time. */
+    private ByteBuffer _transactionKind;
+    private IntBuffer _transactionId;
+    private IntBuffer _transactionProduct;
+    private IntBuffer _transactionPartner;
+    private IntBuffer _transactionQuantity;
+    private DoubleBuffer _transactionBaseValue;
+    private IntBuffer _transactionPaymentDate;
+    private ByteBuffer _transactionPaid;
+    private DoubleBuffer _transactionAmountPaid;
+    private IntBuffer _transactionDeadline;
+
+    /* Breakdown lines, grouped by transaction (an index into the transaction columns). */
+    private IntBuffer _lineTransaction;
+    private IntBuffer _lineProduct;
+    private DoubleBuffer _linePrice;
+    private IntBuffer _lineQuantity;
+
+    /* Pending notifications, in delivery order for each partner; types are indexes into _notificationTypes. */
+    private String[] _notificationTypes;
+    private int[] _notificationPartner;
+    private byte[] _notificationType;
+    private int[] _notificationProduct;
+    private double[] _notificationPrice;
+
+    /* Deltas: partners and products referred to but not recorded, by ID. */
+    private String[] _partnerReferences = new String[0];
+    private String[] _productReferences = new String[0];
+
+    /** Deltas read after this snapshot, applied in order by restore. */
+    private List<BinarySnapshot> _deltas = new ArrayList<BinarySnapshot>();
+
+    /** Length of the part of the file read, up to the last complete delta. */
+    private long _length;
+
+    private BinarySnapshot() {
+    }
+
+    /**
+     * Numbers the entities of a capture. The recorded ones come first; any
+     * other entity met is numbered after them, as a reference.
+     */
+    private static class Index<T> {
+        private Map<T, Integer> _numbers = new IdentityHashMap<T, Integer>();
+        private List<T> _references = new ArrayList<T>();
+
+        void addRecord(T entity) {
+            _numbers.put(entity, _numbers.size());
+        }
+
+        int get(T entity) {
+            Integer number = _numbers.get(entity);
+            if(number == null) {
+                number = _numbers.size();
+                _numbers.put(entity, number);
+                _references.add(entity);
+            }
+            return number;
+        }
+
+        List<T> getReferences() {
+            return _references;
+        }
+    }
+
+    /**
+     * Copies the state of a warehouse. Pending product events are delivered first.
+     *
+     * @param warehouse
+     *          the warehouse.
+     * @return the snapshot.
+     */
+    static BinarySnapshot capture(Warehouse warehouse) {
+        warehouse.flushNotifications();
+        List<Partner> partners = new ArrayList<Partner>();
+        for(ProductObserver observer : warehouse.getObservers()) {
+            partners.add((Partner)observer);
+        }
+
+        return capture(warehouse, partners, warehouse.getProducts(), warehouse.getTransactions());
+    }
+
+    /**
+     * Copies what changed in a warehouse since its last checkpoint, as a
+     * delta. Pending product events are delivered first.
+     *
+     * @param warehouse
+     *          the warehouse.
+     * @return the delta.
+     */
+    static BinarySnapshot captureChanges(Warehouse warehouse) {
+        warehouse.flushNotifications();
+        return capture(warehouse, warehouse.getDirtyPartners(), warehouse.getDirtyProducts(), warehouse.getTransactionsSinceCheckpoint());
+    }
+
+    private static BinarySnapshot capture(Warehouse warehouse, List<Partner> partners, Collection<Product> products,
+            Collection<Transaction> transactions) {
+        BinarySnapshot snapshot = new BinarySnapshot();
+
+        snapshot._date = warehouse.getDate().getDays();
+        snapshot._nextTransactionId = warehouse.getNextTransactionId();
+        snapshot._availableBalance = warehouse.getAvailableBalance();
+
+        Index<Partner> partnerIndex = snapshot.capturePartners(partners);
+        Index<Product> productIndex = snapshot.captureProducts(products, partnerIndex);
+        snapshot.captureBatches(products, productIndex, partnerIndex);
+        snapshot.captureTransactions(transactions, productIndex, partnerIndex);
+        snapshot.captureNotifications(partners, productIndex);
+
+        snapshot._partnerReferences = new String[partnerIndex.getReferences().size()];
+        for(int i = 0; i < snapshot._partnerReferences.length; i++) {
+            snapshot._partnerReferences[i] = partnerIndex.getReferences().get(i).getId();
+        }
+        snapshot._productReferences = new String[productIndex.getReferences().size()];
+        for(int i = 0; i < snapshot._productReferences.length; i++) {
+            snapshot._productReferences[i] = productIndex.getReferences().get(i).getId();
+        }
+
+        return snapshot;
+    }
+
+    private Index<Partner> capturePartners(List<Partner> partners) {
+        int count = partners.size();
+        Index<Partner> index = new Index<Partner>();
+
+        _partnerIds = new String[count];
+        _partnerNames = new String[count];
+        _partnerAddresses = new String[count];
+        _partnerStatus = new byte[count];
+        _partnerPoints = new double[count];
+        _partnerAcquisitionsValue = new double[count];
+        _partnerBaseValues = new double[count];
+        _partnerTotalSalesValue = new double[count];
+
+        for(int i = 0; i < count; i++) {
+            Partner partner = partners.get(i);
+            index.addRecord(partner);
+
+            _partnerIds[i] = partner.getId();
+            _partnerNames[i] = partner.getName();
+            _partnerAddresses[i] = partner.getAddress();
+            _partnerStatus[i] = statusCode(partner.getStatus());
+            _partnerPoints[i] = partner.getPoints();
+            _partnerAcquisitionsValue[i] = partner.getAcquisitionsValue();
+            _partnerBaseValues[i] = partner.getBaseValues();
+            _partnerTotalSalesValue[i] = partner.getTotalSalesValue();
+        }
+
+        return index;
+    }
+
+    private Index<Product> captureProducts(Collection<Product> products, Index<Partner> partnerIndex) {
+        int count = products.size();
+        Index<Product> index = new Index<Product>();
+
+        _productIds = new String[count];
+        _productKinds = new byte[count];
+        _productStock = new int[count];
+        _productAllTimeHigh = new double[count];
+
+        int i = 0;
+        int recipes = 0;
+        int components = 0;
+        int optOuts = 0;
+        for(Product product : products) {
+            index.addRecord(product);
+
+            _productIds[i] = product.getId();
+            _productKinds[i] = product.getRecipe() == null ? SIMPLE : AGGREGATE;
+            _productStock[i] = product.getTotalStock();
+            _productAllTimeHigh[i] = product.getAllTimeHigh();
+
+            if(product.getRecipe() != null) {
+                recipes++;
+                components += product.getRecipe().getComponents().size();
+            }
+            optOuts += product.getOptedOut().size();
+            i++;
+        }
+
+        _recipeProduct = new int[recipes];
+        _recipeAlpha = new double[recipes];
+        _recipeStart = new int[recipes + 1];
+        _componentProduct = new int[components];
+        _componentQuantity = new int[components];
+        _optOutProduct = new int[optOuts];
+        _optOutPartner = new int[optOuts];
+
+        int recipe = 0;
+        int component = 0;
+        int optOut = 0;
+        for(Product product : products) {
+            Recipe productRecipe = product.getRecipe();
+            if(productRecipe != null) {
+                _recipeProduct[recipe] = index.get(product);
+                _recipeAlpha[recipe] = productRecipe.getAlpha();
+                _recipeStart[recipe] = component;
+                for(Component productComponent : productRecipe.getComponents()) {
+                    _componentProduct[component] = index.get(productComponent.getProduct());
+                    _componentQuantity[component] = productComponent.getQuantity();
+                    component++;
+                }
+                recipe++;
+            }
+
+            for(ProductObserver observer : product.getOptedOut()) {
+                _optOutProduct[optOut] = index.get(product);
+                _optOutPartner[optOut] = partnerIndex.get((Partner)observer);
+                optOut++;
+            }
+        }
+        _recipeStart[recipes] = component;
+
+        return index;
+    }
+
+    private void captureBatches(Collection<Product> products, Index<Product> productIndex, Index<Partner> partnerIndex) {
+        int count = 0;
+        for(Product product : products) {
+            count += product.getBatches().size();
+        }
+
+        _batchProduct = new int[count];
+        _batchPartner = new int[count];
+        _batchPrice = new double[count];
+        _batchQuantity = new int[count];
+
+        int i = 0;
+        for(Product product : products) {
+            int productId = productIndex.get(product);
+            for(Batch batch : product.getBatches()) {
+                _batchProduct[i] = productId;
+                _batchPartner[i] = partnerIndex.get(batch.getPartner());
+                _batchPrice[i] = batch.getPrice();
+                _batchQuantity[i] = batch.getQuantity();
+                i++;
+            }
+        }
+    }
+
+    private void captureTransactions(Collection<Transaction> transactions, Index<Product> productIndex, Index<Partner> partnerIndex) {
+        int count = transactions.size();
+
+        byte[] kinds = new byte[count];
+        int[] ids = new int[count];
+        int[] transactionProducts = new int[count];
+        int[] transactionPartners = new int[count];
+        int[] quantities = new int[count];
+        double[] baseValues = new double[count];
+        int[] paymentDates = new int[count];
+        byte[] paid = new byte[count];
+        double[] amountsPaid = new double[count];
+        int[] deadlines = new int[count];
+
+        int lines = 0;
+        for(Transaction transaction : transactions) {
+            if(transaction instanceof BreakdownSale) {
+                lines += ((BreakdownSale)transaction).getBatches().size();
+            }
+        }
+
+        int[] lineTransactions = new int[lines];
+        int[] lineProducts = new int[lines];
+        double[] linePrices = new double[lines];
+        int[] lineQuantities = new int[lines];
+
+        int i = 0;
+        int line = 0;
+        for(Transaction transaction : transactions) {
+            ids[i] = transaction.getId();
+            transactionProducts[i] = productIndex.get(transaction.getProduct());
+            transactionPartners[i] = partnerIndex.get(transaction.getPartner());
+            quantities[i] = transaction.getQuantity();
+            baseValues[i] = transaction.getBaseValue();
+            paymentDates[i] = transaction.getPaymentDate() == null ? NO_DATE : transaction.getPaymentDate().getDays();
+            paid[i] = (byte)(transaction.isPaid() ? 1 : 0);
+
+            if(transaction instanceof SaleByCredit) {
+                SaleByCredit sale = (SaleByCredit)transaction;
+                kinds[i] = SALE_BY_CREDIT;
+                amountsPaid[i] = sale.getAmountPaid();
+                deadlines[i] = sale.getDeadLine().getDays();
+            } else if(transaction instanceof BreakdownSale) {
+                kinds[i] = BREAKDOWN;
+                for(Batch batch : ((BreakdownSale)transaction).getBatches()) {
+                    lineTransactions[line] = i;
+                    lineProducts[line] = productIndex.get(batch.getProduct());
+                    linePrices[line] = batch.getPrice();
+                    lineQuantities[line] = batch.getQuantity();
+                    line++;
+                }
+            } else {
+                kinds[i] = ACQUISITION;
+            }
+            i++;
+        }
+
+        _transactionKind = ByteBuffer.wrap(kinds);
+        _transactionId = IntBuffer.wrap(ids);
+        _transactionProduct = IntBuffer.wrap(transactionProducts);
+        _transactionPartner = IntBuffer.wrap(transactionPartners);
+        _transactionQuantity = IntBuffer.wrap(quantities);
+        _transactionBaseValue = DoubleBuffer.wrap(baseValues);
+        _transactionPaymentDate = IntBuffer.wrap(paymentDates);
+        _transactionPaid = ByteBuffer.wrap(paid);
+        _transactionAmountPaid = DoubleBuffer.wrap(amountsPaid);
+        _transactionDeadline = IntBuffer.wrap(deadlines);
+        _lineTransaction = IntBuffer.wrap(lineTransactions);
+        _lineProduct = IntBuffer.wrap(lineProducts);
+        _linePrice = DoubleBuffer.wrap(linePrices);
+        _lineQuantity = IntBuffer.wrap(lineQuantities);
+    }
+
+    private void captureNotifications(List<Partner> partners, Index<Product> productIndex) {
+        List<Notification> notifications = new ArrayList<Notification>();
+        List<Integer> owners = new ArrayList<Integer>();
+
+        for(int i = 0; i < partners.size(); i++) {
+            for(Notification notification : partners.get(i).peekNotifications()) {
+                notifications.add(notification);
+                owners.add(i);
+            }
+        }
+
+        int count = notifications.size();
+        List<String> types = new ArrayList<String>();
+        _notificationPartner = new int[count];
+        _notificationType = new byte[count];
+        _notificationProduct = new int[count];
+        _notificationPrice = new double[count];
+
+        for(int i = 0; i < count; i++) {
+            Notification notification = notifications.get(i);
+            int type = types.indexOf(notification.getType());
+            if(type < 0) {
+                type = types.size();
+                types.add(notification.getType());
+            }
+
+            _notificationPartner[i] = owners.get(i);
+            _notificationType[i] = (byte)type;
+            _notificationProduct[i] = productIndex.get(notification.getProduct());
+            _notificationPrice[i] = notification.getPrice();
+        }
+        _notificationTypes = types.toArray(new String[types.size()]);
+    }
+
+    /**
+     * Writes the snapshot to a file, replacing its contents.
+     *
+     * @param file
+     *          destination file.
+     * @throws IOException
+     */
+    void writeTo(Path file) throws IOException {
+        writeTo(file, done -> {});
+    }
+
+    /**
+     * Writes the snapshot to a file, replacing its contents. Reading the
+     * captured arrays does not touch the warehouse, so this may run on
+     * another thread while the warehouse keeps changing.
+     *
+     * @param file
+     *          destination file.
+     * @param progress
+     *          receives the fraction of the snapshot written so far, from 0 to 1.
+     * @throws IOException
+     */
+    void writeTo(Path file, DoubleConsumer progress) throws IOException {
+        Progress written = new Progress(progress, elementCount());
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeBody(out, written);
+        }
+        progress.accept(1);
+    }
+
+    /**
+     * Writes this snapshot, taken by captureChanges, as a delta after the
+     * first bytes of a snapshot file. Anything after them, such as an
+     * incomplete delta, is dropped.
+     *
+     * @param file
+     *          snapshot file.
+     * @param length
+     *          length of the valid part of the file.
+     * @return the new length of the valid part of the file.
+     * @throws IOException
+     */
+    long appendTo(Path file, long length) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Progress written = new Progress(done -> {}, elementCount());
+        writeBody(out, written);
+        out.writeInt(_partnerReferences.length);
+        writeStrings(out, _partnerReferences, written);
+        out.writeInt(_productReferences.length);
+        writeStrings(out, _productReferences, written);
+        byte[] body = bytes.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        ByteBuffer delta = ByteBuffer.allocate(8 + body.length + 8);
+        delta.putInt(DELTA_MAGIC).putInt(body.length).put(body).putLong(crc.getValue());
+        delta.flip();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(length);
+            long position = length;
+            while(delta.hasRemaining()) {
+                position += channel.write(delta, position);
+            }
+            channel.force(true);
+            return position;
+        }
+    }
+
+    private void writeBody(DataOutputStream out, Progress written) throws IOException {
+        out.writeInt(_date);
+        out.writeInt(_nextTransactionId);
+        out.writeDouble(_availableBalance);
+
+        out.writeInt(_partnerIds.length);
+        writeStrings(out, _partnerIds, written);
+        writeStrings(out, _partnerNames, written);
+        writeStrings(out, _partnerAddresses, written);
+        writeBytes(out, _partnerStatus, written);
+        writeDoubles(out, _partnerPoints, written);
+        writeDoubles(out, _partnerAcquisitionsValue, written);
+        writeDoubles(out, _partnerBaseValues, written);
+        writeDoubles(out, _partnerTotalSalesValue, written);
+
+        out.writeInt(_productIds.length);
+        writeStrings(out, _productIds, written);
+        writeBytes(out, _productKinds, written);
+        writeInts(out, _productStock, written);
+        writeDoubles(out, _productAllTimeHigh, written);
+
+        out.writeInt(_recipeProduct.length);
+        writeInts(out, _recipeProduct, written);
+        writeDoubles(out, _recipeAlpha, written);
+        writeInts(out, _recipeStart, written);
+        out.writeInt(_componentProduct.length);
+        writeInts(out, _componentProduct, written);
+        writeInts(out, _componentQuantity, written);
+
+        out.writeInt(_optOutProduct.length);
+        writeInts(out, _optOutProduct, written);
+        writeInts(out, _optOutPartner, written);
+
+        out.writeInt(_batchProduct.length);
+        writeInts(out, _batchProduct, written);
+        writeInts(out, _batchPartner, written);
+        writeDoubles(out, _batchPrice, written);
+        writeInts(out, _batchQuantity, written);
+
+        out.writeInt(_transactionId.limit());
+        writeBytes(out, _transactionKind, written);
+        writeInts(out, _transactionId, written);
+        writeInts(out, _transactionProduct, written);
+        writeInts(out, _transactionPartner, written);
+        writeInts(out, _transactionQuantity, written);
+        writeDoubles(out, _transactionBaseValue, written);
+        writeInts(out, _transactionPaymentDate, written);
+        writeBytes(out, _transactionPaid, written);
+        writeDoubles(out, _transactionAmountPaid, written);
+        writeInts(out, _transactionDeadline, written);
+
+        out.writeInt(_lineTransaction.limit());
+        writeInts(out, _lineTransaction, written);
+        writeInts(out, _lineProduct, written);
+        writeDoubles(out, _linePrice, written);
+        writeInts(out, _lineQuantity, written);
+
+        out.writeInt(_notificationTypes.length);
+        writeStrings(out, _notificationTypes, written);
+        out.writeInt(_notificationPartner.length);
+        writeInts(out, _notificationPartner, written);
+        writeBytes(out, _notificationType, written);
+        writeInts(out, _notificationProduct, written);
+        writeDoubles(out, _notificationPrice, written);
+    }
+
+    /** @return number of array elements written by writeTo. */
+    private long elementCount() {
+        return 8L * _partnerIds.length + 4L * _productIds.length + 2L * _recipeProduct.length + _recipeStart.length
+            + 2L * _componentProduct.length + 2L * _optOutProduct.length + 4L * _batchProduct.length
+            + 10L * _transactionId.limit() + 4L * _lineTransaction.limit() + _notificationTypes.length
+            + 4L * _notificationPartner.length;
+    }
+
+    /** Reports the progress of writeTo after every column written. */
+    private static class Progress {
+        private DoubleConsumer _listener;
+        private long _total;
+        private long _done;
+
+        Progress(DoubleConsumer listener, long total) {
+            _listener = listener;
+            _total = Math.max(total, 1);
+        }
+
+        void advance(int elements) {
+            _done += elements;
+            _listener.accept((double) _done / _total);
+        }
+    }
+
+    /**
+     * @param file
+     *          a file.
+     * @return true if the file starts with the snapshot signature.
+     * @throws IOException
+     */
+    static boolean isSnapshot(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer signature = ByteBuffer.allocate(4);
+            while(signature.hasRemaining() && channel.read(signature) >= 0) {
+                // keep reading until the signature is complete or the file ends
+            }
+            return !signature.hasRemaining() && signature.getInt(0) == MAGIC;
+        }
+    }
+
+    /**
+     * Reads a snapshot from a file.
+     *
+     * @param file
+     *          the file.
+     * @return the snapshot.
+     * @throws IOException
+     *          if the file cannot be read or is not a valid snapshot.
+     */
+    static BinarySnapshot readFrom(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            BinarySnapshot snapshot = new BinarySnapshot();
+
+            if(in.remaining() < 8 || in.getInt() != MAGIC) {
+                throw new IOException("Not a warehouse snapshot: " + file);
+            }
+            int version = in.getInt();
+            if(version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + ": " + file);
+            }
+
+            snapshot.read(in);
+            snapshot._length = in.position();
+            snapshot.readDeltas(in);
+            return snapshot;
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupted warehouse snapshot: " + file, e);
+        }
+    }
+
+    /**
+     * Reads the deltas after the snapshot, up to the first incomplete or
+     * damaged one.
+     */
+    private void readDeltas(ByteBuffer in) {
+        while(in.remaining() >= 8 && in.getInt() == DELTA_MAGIC) {
+            int length = in.getInt();
+            if(length < 0 || in.remaining() < length + 8) {
+                return;
+            }
+
+            ByteBuffer body = in.slice(in.position(), length);
+            CRC32 crc = new CRC32();
+            crc.update(body.duplicate());
+            in.position(in.position() + length);
+            if(in.getLong() != crc.getValue()) {
+                return;
+            }
+
+            BinarySnapshot delta = new BinarySnapshot();
+            delta.read(body);
+            delta._partnerReferences = readStrings(body, body.getInt());
+            delta._productReferences = readStrings(body, body.getInt());
+            _deltas.add(delta);
+            _length = in.position();
+        }
+    }
+
+    /** @return length of the part of the file read, up to the last complete delta. */
+    long getLength() {
+        return _length;
+    }
+
+    /** @return number of deltas read after the snapshot. */
+    int getDeltaCount() {
+        return _deltas.size();
+    }
+
+    private void read(ByteBuffer in) {
+        _date = in.getInt();
+        _nextTransactionId = in.getInt();
+        _availableBalance = in.getDouble();
+
+        int partners = in.getInt();
+        _partnerIds = readStrings(in, partners);
+        _partnerNames = readStrings(in, partners);
+        _partnerAddresses = readStrings(in, partners);
+        _partnerStatus = readBytes(in, partners);
+        _partnerPoints = readDoubles(in, partners);
+        _partnerAcquisitionsValue = readDoubles(in, partners);
+        _partnerBaseValues = readDoubles(in, partners);
+        _partnerTotalSalesValue = readDoubles(in, partners);
+
+        int products = in.getInt();
+        _productIds = readStrings(in, products);
+        _productKinds = readBytes(in, products);
+        _productStock = readInts(in, products);
+        _productAllTimeHigh = readDoubles(in, products);
+
+        int recipes = in.getInt();
+        _recipeProduct = readInts(in, recipes);
+        _recipeAlpha = readDoubles(in, recipes);
+        _recipeStart = readInts(in, recipes + 1);
+        int components = in.getInt();
+        _componentProduct = readInts(in, components);
+        _componentQuantity = readInts(in, components);
+
+        int optOuts = in.getInt();
+        _optOutProduct = readInts(in, optOuts);
+        _optOutPartner = readInts(in, optOuts);
+
+        int batches = in.getInt();
+        _batchProduct = readInts(in, batches);
+        _batchPartner = readInts(in, batches);
+        _batchPrice = readDoubles(in, batches);
+        _batchQuantity = readInts(in, batches);
+
+        int transactions = in.getInt();
+        _transactionKind = viewBytes(in, transactions);
+        _transactionId = viewInts(in, transactions);
+        _transactionProduct = viewInts(in, transactions);
+        _transactionPartner = viewInts(in, transactions);
+        _transactionQuantity = viewInts(in, transactions);
+        _transactionBaseValue = viewDoubles(in, transactions);
+        _transactionPaymentDate = viewInts(in, transactions);
+        _transactionPaid = viewBytes(in, transactions);
+        _transactionAmountPaid = viewDoubles(in, transactions);
+        _transactionDeadline = viewInts(in, transactions);
+
+        int lines = in.getInt();
+        _lineTransaction = viewInts(in, lines);
+        _lineProduct = viewInts(in, lines);
+        _linePrice = viewDoubles(in, lines);
+        _lineQuantity = viewInts(in, lines);
+
+        _notificationTypes = readStrings(in, in.getInt());
+        int notifications = in.getInt();
+        _notificationPartner = readInts(in, notifications);
+        _notificationType = readBytes(in, notifications);
+        _notificationProduct = readInts(in, notifications);
+        _notificationPrice = readDoubles(in, notifications);
+    }
+
+    /**
+     * Builds a new warehouse holding the snapshot's state, with every
+     * transaction built up front.
+     *
+     * @return the warehouse.
+     */
+    Warehouse restore() {
+        return restore(false);
+    }
+
+    /**
+     * Builds a new warehouse holding the snapshot's state, with the deltas
+     * read after it applied. The result is a checkpoint.
+     *
+     * @param lazy
+     *          if true, only the open sales by credit are built; the other
+     *          transactions of the snapshot are built from the mapped file
+     *          when first needed.
+     * @return the warehouse.
+     */
+    Warehouse restore(boolean lazy) {
+        Warehouse warehouse = new Warehouse();
+        applyTo(warehouse, lazy);
+        for(BinarySnapshot delta : _deltas) {
+            delta.applyTo(warehouse, false);
+        }
+        warehouse.markCheckpoint();
+        return warehouse;
+    }
+
+    /**
+     * Writes the recorded state into a warehouse: recorded partners and
+     * products are created or overwritten, and recorded transactions are
+     * created or, if they exist, marked as paid. If lazy, transactions are
+     * left to a SnapshotHistory instead, except the open sales by credit.
+     */
+    private void applyTo(Warehouse warehouse, boolean lazy) {
+        warehouse.restoreCounters(_date, _nextTransactionId, _availableBalance);
+
+        Partner[] partners = new Partner[_partnerIds.length + _partnerReferences.length];
+        for(int i = 0; i < _partnerIds.length; i++) {
+            Partner partner = warehouse.findPartner(_partnerIds[i]);
+            if(partner == null) {
+                partner = new Partner(_partnerIds[i], _partnerNames[i], _partnerAddresses[i]);
+                warehouse.restorePartner(partner);
+            }
+            partner.setStatus(status(_partnerStatus[i], partner));
+            partner.setPoints(_partnerPoints[i]);
+            partner.restoreValues(_partnerAcquisitionsValue[i], _partnerBaseValues[i], _partnerTotalSalesValue[i]);
+            partner.clearNotifications();
+            partners[i] = partner;
+        }
+        for(int i = 0; i < _partnerReferences.length; i++) {
+            partners[_partnerIds.length + i] = existing(warehouse.findPartner(_partnerReferences[i]), _partnerReferences[i]);
+        }
+
+        Product[] products = new Product[_productIds.length + _productReferences.length];
+        for(int i = 0; i < _productIds.length; i++) {
+            Product product = warehouse.findProduct(_productIds[i]);
+            if(product == null) {
+                product = _productKinds[i] == AGGREGATE ? new AggregateProduct(_productIds[i]) : new SimpleProduct(_productIds[i]);
+                warehouse.restoreProduct(product);
+            }
+            product.clearRestoredState();
+            product.restoreStock(_productStock[i], _productAllTimeHigh[i]);
+            products[i] = product;
+        }
+        for(int i = 0; i < _productReferences.length; i++) {
+            products[_productIds.length + i] = existing(warehouse.findProduct(_productReferences[i]), _productReferences[i]);
+        }
+
+        for(int i = 0; i < _recipeProduct.length; i++) {
+            AggregateProduct product = (AggregateProduct)products[_recipeProduct[i]];
+            if(product.getRecipe() != null) {
+                continue;
+            }
+            List<Component> components = new ArrayList<Component>();
+            for(int c = _recipeStart[i]; c < _recipeStart[i + 1]; c++) {
+                components.add(new Component(_componentQuantity[c], products[_componentProduct[c]]));
+            }
+            product.setRecipe(new Recipe(product, components, _recipeAlpha[i]));
+        }
+
+        for(int i = 0; i < _optOutProduct.length; i++) {
+            products[_optOutProduct[i]].removeObserver(partners[_optOutPartner[i]]);
+        }
+
+        for(int i = 0; i < _batchProduct.length; i++) {
+            Product product = products[_batchProduct[i]];
+            product.restoreBatch(new Batch(_batchPrice[i], _batchQuantity[i], partners[_batchPartner[i]], product));
+        }
+
+        if(lazy) {
+            warehouse.setHistory(new SnapshotHistory(this, products, partners));
+            for(int i = 0; i < _transactionId.limit(); i++) {
+                if(_transactionKind.get(i) == SALE_BY_CREDIT && _transactionPaid.get(i) == 0) {
+                    warehouse.restoreOpenReceivable((SaleByCredit)warehouse.findTransaction(_transactionId.get(i)));
+                }
+            }
+        } else {
+            int line = 0;
+            for(int i = 0; i < _transactionId.limit(); i++) {
+                Transaction existing = warehouse.findTransaction(_transactionId.get(i));
+                if(existing == null) {
+                    warehouse.restoreTransaction(transaction(i, products, partners, line));
+                } else if(_transactionPaid.get(i) != 0 && !existing.isPaid()) {
+                    warehouse.restorePayment(existing, new Date(_transactionPaymentDate.get(i)), _transactionAmountPaid.get(i));
+                }
+                while(line < _lineTransaction.limit() && _lineTransaction.get(line) == i) {
+                    line++;
+                }
+            }
+        }
+
+        for(int i = 0; i < _notificationPartner.length; i++) {
+            partners[_notificationPartner[i]].restoreNotification(
+                new Notification(_notificationTypes[_notificationType[i]], products[_notificationProduct[i]], _notificationPrice[i]));
+        }
+    }
+
+    /** @return the entity a delta refers to, which must exist. */
+    private static <T> T existing(T entity, String id) {
+        if(entity == null) {
+            throw new IllegalStateException("Delta refers to unknown entity " + id);
+        }
+        return entity;
+    }
+
+    /** @return number of transactions in the snapshot. */
+    int getTransactionCount() {
+        return _transactionId.limit();
+    }
+
+    /** @return the partner index of transaction i. */
+    int getTransactionPartner(int i) {
+        return _transactionPartner.get(i);
+    }
+
+    /** @return the ID of transaction i. */
+    int getTransactionId(int i) {
+        return _transactionId.get(i);
+    }
+
+    /** @return the index of the transaction with the given ID, or -1 if there is none. */
+    int indexOfTransaction(int id) {
+        int low = 0;
+        int high = _transactionId.limit() - 1;
+        while(low <= high) {
+            int middle = (low + high) >>> 1;
+            int middleId = _transactionId.get(middle);
+            if(middleId < id) {
+                low = middle + 1;
+            } else if(middleId > id) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Builds transaction i on its own.
+     *
+     * @param products
+     *          the restored products, by index.
+     * @param partners
+     *          the restored partners, by index.
+     * @return the transaction.
+     */
+    Transaction transaction(int i, Product[] products, Partner[] partners) {
+        int low = 0;
+        int high = _lineTransaction.limit();
+        while(low < high) {
+            int middle = (low + high) >>> 1;
+            if(_lineTransaction.get(middle) < i) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return transaction(i, products, partners, low);
+    }
+
+    /**
+     * Builds transaction i. Its breakdown lines, if any, start at firstLine.
+     */
+    private Transaction transaction(int i, Product[] products, Partner[] partners, int firstLine) {
+        int id = _transactionId.get(i);
+        Product product = products[_transactionProduct.get(i)];
+        Partner partner = partners[_transactionPartner.get(i)];
+        int quantity = _transactionQuantity.get(i);
+        Transaction transaction;
+
+        switch(_transactionKind.get(i)) {
+            case SALE_BY_CREDIT:
+                SaleByCredit sale = new SaleByCredit(id, product, quantity, partner, _transactionDeadline.get(i));
+                sale.setAmountPaid(_transactionAmountPaid.get(i));
+                transaction = sale;
+                break;
+            case BREAKDOWN:
+                BreakdownSale breakdown = new BreakdownSale(id, product, quantity, partner);
+                List<Batch> batches = new ArrayList<Batch>();
+                for(int line = firstLine; line < _lineTransaction.limit() && _lineTransaction.get(line) == i; line++) {
+                    batches.add(new Batch(_linePrice.get(line), _lineQuantity.get(line), products[_lineProduct.get(line)]));
+                }
+                breakdown.setBatches(batches);
+                transaction = breakdown;
+                break;
+            default:
+                transaction = new Acquisition(id, product, quantity, partner);
+                break;
+        }
+
+        transaction.setBaseValue(_transactionBaseValue.get(i));
+        transaction.setPaid(_transactionPaid.get(i) != 0);
+        if(_transactionPaymentDate.get(i) != NO_DATE) {
+            transaction.setPaymentDate(new Date(_transactionPaymentDate.get(i)));
+        }
+
+        return transaction;
+    }
+
+    private static byte statusCode(PartnerState status) {
+        if(status instanceof ElitePartner) {
+            return ELITE;
+        }
+        if(status instanceof SelectionPartner) {
+            return SELECTION;
+        }
+        return NORMAL;
+    }
+
+    private static PartnerState status(byte code, Partner partner) {
+        switch(code) {
+            case ELITE:
+                return new ElitePartner(partner);
+            case SELECTION:
+                return new SelectionPartner(partner);
+            default:
+                return new NormalPartner(partner);
+        }
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] values, Progress written) throws IOException {
+        for(String value : values) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        written.advance(values.length);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] values, Progress written) throws IOException {
+        out.write(values);
+        written.advance(values.length);
+    }
+
+    private static void writeBytes(DataOutputStream out, ByteBuffer values, Progress written) throws IOException {
+        for(int i = 0; i < values.limit(); i++) {
+            out.writeByte(values.get(i));
+        }
+        written.advance(values.limit());
+    }
+
+    private static void writeInts(DataOutputStream out, IntBuffer values, Progress written) throws IOException {
+        for(int i = 0; i < values.limit(); i++) {
+            out.writeInt(values.get(i));
+        }
+        written.advance(values.limit());
+    }
+
+    private static void writeDoubles(DataOutputStream out, DoubleBuffer values, Progress written) throws IOException {
+        for(int i = 0; i < values.limit(); i++) {
+            out.writeDouble(values.get(i));
+        }
+        written.advance(values.limit());
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values, Progress written) throws IOException {
+        for(int value : values) {
+            out.writeInt(value);
+        }
+        written.advance(values.length);
+    }
+
+    private static void writeDoubles(DataOutputStream out, double[] values, Progress written) throws IOException {
+        for(double value : values) {
+            out.writeDouble(value);
+        }
+        written.advance(values.length);
+    }
+
+    private static String[] readStrings(ByteBuffer in, int count) {
+        String[] values = new String[count];
+        for(int i = 0; i < count; i++) {
+            byte[] bytes = new byte[in.getInt()];
+            in.get(bytes);
+            values[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return values;
+    }
+
+    private static byte[] readBytes(ByteBuffer in, int count) {
+        byte[] values = new byte[count];
+        in.get(values);
+        return values;
+    }
+
+    private static int[] readInts(ByteBuffer in, int count) {
+        int[] values = new int[count];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + count * Integer.BYTES);
+        return values;
+    }
+
+    private static double[] readDoubles(ByteBuffer in, int count) {
+        double[] values = new double[count];
+        in.asDoubleBuffer().get(values);
+        in.position(in.position() + count * Double.BYTES);
+        return values;
+    }
+
+    private static ByteBuffer viewBytes(ByteBuffer in, int count) {
+        ByteBuffer values = in.slice(in.position(), count);
+        in.position(in.position() + count);
+        return values;
+    }
+
+    private static IntBuffer viewInts(ByteBuffer in, int count) {
+        IntBuffer values = in.slice(in.position(), count * Integer.BYTES).asIntBuffer();
+        in.position(in.position() + count * Integer.BYTES);
+        return values;
+    }
+
+    private static DoubleBuffer viewDoubles(ByteBuffer in, int count) {
+        DoubleBuffer values = in.slice(in.position(), count * Double.BYTES).asDoubleBuffer();
+        in.position(in.position() + count * Double.BYTES);
+        return values;
+    }
+}
@@ -5,6 +5,9 @@ import java.util.List;
 
 public class BreakdownSale extends Sale {
 
+    /** Serial number for serialization. */
+    private static final long serialVersionUID = 7436142865490926532L;
+
     private List<Batch> _batches = new ArrayList<Batch>();
 
 
@@ -28,6 +31,10 @@ public class BreakdownSale extends Sale {
         return getBaseValue();
     }
 
+    List<Batch> getBatches() {
+        return _batches;
+    }
+
     void setBatches(List<Batch> batches) {
         _batches = batches;
     }
@@ -0,0 +1,254 @@
+package ggc.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Runs the changes of many clients on a single writer thread.
+ *
+ * Clients submit commands to a bounded ring buffer and wait on a future for
+ * their results. The writer drains every command queued so far and runs
+ * them in submission order, holding the manager's write lock once for the
+ * whole batch: commands never contend with each other, and the warehouse
+ * sees one change at a time. Queries need not go through the sequencer;
+ * they may call the manager directly, from any thread.
+ *
+ * Clients are meant to be cheap threads, such as the virtual threads of
+ * newClientExecutor, each blocking on its own command.
+ */
+public class CommandSequencer implements AutoCloseable {
+
+  /** Default number of commands queued before submitters block. */
+  public static final int DEFAULT_CAPACITY = 1024;
+
+  /** A change to the warehouse, run on the writer thread. */
+  @FunctionalInterface
+  public interface Command<T> {
+    T execute(WarehouseManager manager) throws Exception;
+  }
+
+  /** A command and the future completed with its outcome. */
+  private static class Submission<T> {
+    private final Command<T> _command;
+    private final CompletableFuture<T> _result = new CompletableFuture<T>();
+    private T _value;
+    private Throwable _error;
+
+    Submission(Command<T> command) {
+      _command = command;
+    }
+
+    void execute(WarehouseManager manager) {
+      try {
+        _value = _command.execute(manager);
+      } catch (Exception e) {
+        // an exception fails its command only: the writer keeps serving the others
+        _error = e;
+      }
+    }
+
+    void complete() {
+      if (_error != null) {
+        _result.completeExceptionally(_error);
+      } else {
+        _result.complete(_value);
+      }
+    }
+  }
+
+  /** Queued in place of a command to stop the writer. */
+  private static final Submission<Void> STOP = new Submission<Void>(manager -> null);
+
+  private final WarehouseManager _manager;
+
+  /** Commands waiting for the writer, oldest first. */
+  private final BlockingQueue<Submission<?>> _queue;
+
+  private final Thread _writer;
+
+  private volatile boolean _closed;
+
+  /** Set by the writer once it takes no more commands from the queue. */
+  private volatile boolean _stopped;
+
+  /** Number of batches drained, for statistics. */
+  private volatile long _batches;
+
+  /**
+   * @param manager manager the commands are run on.
+   */
+  public CommandSequencer(WarehouseManager manager) {
+    this(manager, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * @param manager manager the commands are run on.
+   * @param capacity number of commands queued before submitters block.
+   */
+  public CommandSequencer(WarehouseManager manager, int capacity) {
+    _manager = manager;
+    _queue = new ArrayBlockingQueue<Submission<?>>(capacity);
+    _writer = new Thread(this::drain, "warehouse-writer");
+    _writer.setDaemon(true);
+    _writer.start();
+  }
+
+  /**
+   * Queues a command, blocking while the queue is full.
+   *
+   * @return a future completed with the command's result, or with the
+   *         exception it threw.
+   * @throws RejectedExecutionException if the sequencer is closed.
+   */
+  public <T> CompletableFuture<T> submit(Command<T> command) {
+    Submission<T> submission = new Submission<T>(command);
+    if (_closed) {
+      throw new RejectedExecutionException("sequencer closed");
+    }
+    try {
+      _queue.put(submission);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RejectedExecutionException(e);
+    }
+
+    // queued after the writer stopped, while blocked on a full queue: nothing else will take it
+    if (_stopped && _queue.remove(submission)) {
+      submission._result.completeExceptionally(new RejectedExecutionException("sequencer closed"));
+    }
+    return submission._result;
+  }
+
+  /**
+   * Runs a command and waits for it.
+   *
+   * @return the command's result.
+   * @throws Exception the exception thrown by the command.
+   */
+  public <T> T call(Command<T> command) throws Exception {
+    try {
+      return submit(command).get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /** @return the number of batches the writer has run so far. */
+  public long getBatchCount() {
+    return _batches;
+  }
+
+  private void drain() {
+    List<Submission<?>> batch = new ArrayList<Submission<?>>();
+
+    while (!_stopped) {
+      try {
+        batch.add(_queue.take());
+      } catch (InterruptedException e) {
+        continue;
+      }
+      _queue.drainTo(batch);
+
+      int executed = 0;
+      Lock lock = _manager.exclusiveLock();
+      lock.lock();
+      try {
+        for (; executed < batch.size() && batch.get(executed) != STOP; executed++) {
+          batch.get(executed).execute(_manager);
+        }
+      } catch (Error e) {
+        abort(batch, executed, e);
+        throw e;
+      } finally {
+        lock.unlock();
+      }
+
+      // completed outside the lock, so that waiting clients resume while the next batch runs
+      for (int i = 0; i < batch.size(); i++) {
+        if (i < executed) {
+          batch.get(i).complete();
+        } else if (batch.get(i) == STOP) {
+          _stopped = true;
+        } else {
+          batch.get(i)._result.completeExceptionally(new RejectedExecutionException("sequencer closed"));
+        }
+      }
+      batch.clear();
+      _batches++;
+    }
+  }
+
+  /**
+   * Settles every command when the writer dies of an error: those run
+   * before it complete as usual, the one that raised it fails with it, and
+   * the others are rejected, as are those submitted afterwards.
+   */
+  private void abort(List<Submission<?>> batch, int executed, Error error) {
+    _closed = true;
+    _stopped = true;
+    for (int i = 0; i < executed; i++) {
+      batch.get(i).complete();
+    }
+    batch.get(executed)._result.completeExceptionally(error);
+    for (int i = executed + 1; i < batch.size(); i++) {
+      batch.get(i)._result.completeExceptionally(new RejectedExecutionException("sequencer stopped", error));
+    }
+
+    Submission<?> submission;
+    while ((submission = _queue.poll()) != null) {
+      submission._result.completeExceptionally(new RejectedExecutionException("sequencer stopped", error));
+    }
+  }
+
+  /**
+   * Runs the commands already queued and stops the writer. Commands
+   * submitted afterwards are rejected.
+   */
+  @Override
+  public void close() {
+    if (_closed) {
+      return;
+    }
+    _closed = true;
+    try {
+      _queue.put(STOP);
+      _writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+
+    // submitted while closing, after the writer stopped
+    Submission<?> submission;
+    while ((submission = _queue.poll()) != null) {
+      submission._result.completeExceptionally(new RejectedExecutionException("sequencer closed"));
+    }
+  }
+
+  /**
+   * @return an executor running each task on a new virtual thread, where
+   *         the runtime has them, or else on a pool of daemon threads.
+   */
+  public static ExecutorService newClientExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "warehouse-client");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+  }
+}
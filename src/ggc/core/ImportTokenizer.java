@@ -0,0 +1,375 @@
+package ggc.core;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Streaming reader of import files: lines of fields separated by '|',
+ * read from a file channel in fixed-size blocks and split without regular
+ * expressions. Fields stay as UTF-8 bytes until asked for: numbers are
+ * parsed from the bytes, and text is decoded only when it is needed as a
+ * String.
+ *
+ * Lines end with "\n", "\r" or "\r\n", as with BufferedReader.readLine.
+ * Fields follow String.split("\\|"): trailing empty fields are dropped.
+ *
+ * A tokenizer can also read the lines of a chunk already in memory, as
+ * cut from a file by a ChunkReader, so that chunks are tokenized in
+ * parallel.
+ */
+class ImportTokenizer implements Closeable {
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private static final byte SEPARATOR = '|';
+
+    /** Powers of ten represented exactly as doubles. */
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for(int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private FileChannel _channel;
+    private ByteBuffer _block = ByteBuffer.allocate(BLOCK_SIZE);
+    private boolean _endOfFile;
+
+    /** Whether the previous line ended with '\r', so that a following '\n' is skipped. */
+    private boolean _afterCarriageReturn;
+
+    /** Bytes of the current line, without its terminator. */
+    private byte[] _line = new byte[256];
+    private int _length;
+
+    /** Field i of the current line is [_fieldStart[i], _fieldEnd[i]). */
+    private int[] _fieldStart = new int[8];
+    private int[] _fieldEnd = new int[8];
+    private int _fieldCount;
+
+    private int _lineNumber;
+
+    ImportTokenizer(Path file) throws IOException {
+        _channel = FileChannel.open(file, StandardOpenOption.READ);
+        _block.flip();
+    }
+
+    /**
+     * @param chunk
+     *          whole lines, as returned by ChunkReader.next.
+     */
+    ImportTokenizer(byte[] chunk) {
+        _block = ByteBuffer.wrap(chunk);
+        _endOfFile = true;
+    }
+
+    /**
+     * Moves to the next line.
+     *
+     * @return false if there are no more lines.
+     * @throws IOException
+     */
+    boolean next() throws IOException {
+        _length = 0;
+        boolean read = false;
+
+        while(true) {
+            if(!_block.hasRemaining() && !fill()) {
+                if(!read) {
+                    return false;
+                }
+                break;
+            }
+
+            byte[] block = _block.array();
+            int start = _block.position();
+            int limit = _block.limit();
+
+            if(_afterCarriageReturn) {
+                _afterCarriageReturn = false;
+                if(block[start] == '\n') {
+                    _block.position(++start);
+                    continue;
+                }
+            }
+
+            int end = start;
+            while(end < limit && block[end] != '\n' && block[end] != '\r') {
+                end++;
+            }
+            append(block, start, end - start);
+            read = true;
+
+            if(end < limit) {
+                _afterCarriageReturn = block[end] == '\r';
+                _block.position(end + 1);
+                break;
+            }
+            _block.position(end);
+        }
+
+        _lineNumber++;
+        split();
+        return true;
+    }
+
+    private boolean fill() throws IOException {
+        if(_endOfFile) {
+            return false;
+        }
+        _block.clear();
+        int read = _channel.read(_block);
+        _block.flip();
+        if(read < 0) {
+            _endOfFile = true;
+            return false;
+        }
+        return true;
+    }
+
+    private void append(byte[] bytes, int offset, int length) {
+        if(_length + length > _line.length) {
+            _line = Arrays.copyOf(_line, Math.max(_line.length * 2, _length + length));
+        }
+        System.arraycopy(bytes, offset, _line, _length, length);
+        _length += length;
+    }
+
+    private void split() {
+        _fieldCount = 0;
+        int start = 0;
+        for(int i = 0; i <= _length; i++) {
+            if(i == _length || _line[i] == SEPARATOR) {
+                if(_fieldCount == _fieldStart.length) {
+                    _fieldStart = Arrays.copyOf(_fieldStart, _fieldCount * 2);
+                    _fieldEnd = Arrays.copyOf(_fieldEnd, _fieldCount * 2);
+                }
+                _fieldStart[_fieldCount] = start;
+                _fieldEnd[_fieldCount] = i;
+                _fieldCount++;
+                start = i + 1;
+            }
+        }
+
+        // as String.split, but an empty line still has its one empty field
+        while(_fieldCount > 1 && _fieldStart[_fieldCount - 1] == _fieldEnd[_fieldCount - 1]) {
+            _fieldCount--;
+        }
+    }
+
+    /** @return the number of lines read so far from the file or chunk. */
+    int getLineNumber() {
+        return _lineNumber;
+    }
+
+    /** @return the current line. */
+    String line() {
+        return text(0, _length);
+    }
+
+    /** @return the number of fields of the current line. */
+    int fieldCount() {
+        return _fieldCount;
+    }
+
+    int fieldStart(int field) {
+        return _fieldStart[field];
+    }
+
+    int fieldEnd(int field) {
+        return _fieldEnd[field];
+    }
+
+    /** @return whether the field is exactly the given ASCII text. */
+    boolean fieldIs(int field, String ascii) {
+        int start = _fieldStart[field];
+        if(_fieldEnd[field] - start != ascii.length()) {
+            return false;
+        }
+        for(int i = 0; i < ascii.length(); i++) {
+            if(_line[start + i] != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    String field(int field) {
+        return text(_fieldStart[field], _fieldEnd[field]);
+    }
+
+    int intField(int field) {
+        return parseInt(_fieldStart[field], _fieldEnd[field]);
+    }
+
+    double doubleField(int field) {
+        return parseDouble(_fieldStart[field], _fieldEnd[field]);
+    }
+
+    /**
+     * @return the position of the first occurrence of the ASCII character in [from, to), or to if there is none.
+     */
+    int indexOf(char c, int from, int to) {
+        while(from < to && _line[from] != c) {
+            from++;
+        }
+        return from;
+    }
+
+    /** @return the bytes in [from, to) of the current line, decoded. */
+    String text(int from, int to) {
+        return new String(_line, from, to - from, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses plain decimal integers directly; anything else is left to
+     * Integer.parseInt, which also reports the errors.
+     */
+    int parseInt(int from, int to) {
+        int i = from;
+        boolean negative = i < to && _line[i] == '-';
+        if(negative || (i < to && _line[i] == '+')) {
+            i++;
+        }
+        if(i == to || to - i > 9) {
+            return Integer.parseInt(text(from, to));
+        }
+
+        int value = 0;
+        for(; i < to; i++) {
+            int digit = _line[i] - '0';
+            if(digit < 0 || digit > 9) {
+                return Integer.parseInt(text(from, to));
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses plain decimals with up to 15 significant digits directly: the
+     * digits and the power of ten are exact doubles, so their quotient is
+     * correctly rounded, as with Double.parseDouble. Anything else is left
+     * to Double.parseDouble.
+     */
+    double parseDouble(int from, int to) {
+        int i = from;
+        boolean negative = i < to && _line[i] == '-';
+        if(negative || (i < to && _line[i] == '+')) {
+            i++;
+        }
+
+        long digits = 0;
+        int count = 0;
+        int decimals = -1;
+        for(; i < to; i++) {
+            byte b = _line[i];
+            if(b == '.' && decimals < 0) {
+                decimals = 0;
+            } else if(b >= '0' && b <= '9' && count < 15) {
+                digits = digits * 10 + (b - '0');
+                count++;
+                if(decimals >= 0) {
+                    decimals++;
+                }
+            } else {
+                return Double.parseDouble(text(from, to));
+            }
+        }
+        if(count == 0) {
+            return Double.parseDouble(text(from, to));
+        }
+
+        double value = decimals > 0 ? digits / POWERS_OF_TEN[decimals] : digits;
+        return negative ? -value : value;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(_channel != null) {
+            _channel.close();
+        }
+    }
+
+    /**
+     * Cuts a file into chunks of whole lines. A chunk is cut after a line
+     * terminator that cannot be the '\r' of a "\r\n", so that every chunk
+     * holds the same lines as the file, read on its own.
+     */
+    static class ChunkReader implements Closeable {
+
+        private FileChannel _channel;
+        private int _chunkSize;
+        private byte[] _buffer;
+        private int _length;
+        private boolean _endOfFile;
+
+        ChunkReader(Path file, int chunkSize) throws IOException {
+            _channel = FileChannel.open(file, StandardOpenOption.READ);
+            _chunkSize = chunkSize;
+            _buffer = new byte[2 * chunkSize];
+        }
+
+        /**
+         * @return the next chunk, or null at the end of the file.
+         * @throws IOException
+         */
+        byte[] next() throws IOException {
+            int cut = -1;
+            while(cut < 0) {
+                while(!_endOfFile && _length < _chunkSize) {
+                    if(_length == _buffer.length) {
+                        _buffer = Arrays.copyOf(_buffer, _buffer.length * 2);
+                    }
+                    int read = _channel.read(ByteBuffer.wrap(_buffer, _length, _buffer.length - _length));
+                    if(read < 0) {
+                        _endOfFile = true;
+                    } else {
+                        _length += read;
+                    }
+                }
+
+                if(_endOfFile) {
+                    cut = _length;
+                } else {
+                    cut = cut();
+                    if(cut < 0) {
+                        // a line longer than a chunk
+                        _chunkSize = _length + 1;
+                    }
+                }
+            }
+
+            if(cut == 0) {
+                return null;
+            }
+            byte[] chunk = Arrays.copyOf(_buffer, cut);
+            System.arraycopy(_buffer, cut, _buffer, 0, _length - cut);
+            _length -= cut;
+            return chunk;
+        }
+
+        /** @return the length of the whole lines in the buffer, or -1 if there are none yet. */
+        private int cut() {
+            for(int i = _length - 1; i >= 0; i--) {
+                if(_buffer[i] == '\n' || (_buffer[i] == '\r' && i < _length - 1)) {
+                    return i + 1;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            _channel.close();
+        }
+    }
+}
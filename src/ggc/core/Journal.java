@@ -0,0 +1,550 @@
+package ggc.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import ggc.core.exception.ImportFileException;
+
+/**
+ * Write-ahead journal of the operations applied to a warehouse since its
+ * last snapshot. Every successful mutation is appended as one record, so
+ * durability costs an append instead of rewriting the whole warehouse.
+ * Imports are appended with the lines they applied, even when they failed
+ * partway, so that replay does not depend on the imported file.
+ *
+ * The journal header identifies the snapshot it extends (by size and
+ * modification time): a journal left behind by a crash between writing a
+ * new snapshot and resetting the journal does not match that snapshot and
+ * is not replayed twice.
+ *
+ * Records are written to the file as soon as they are appended; they are
+ * forced to the storage device every syncInterval records (group commit),
+ * or never when syncInterval is 0. Each record carries a checksum, and
+ * replay stops at the first incomplete or damaged record.
+ *
+ * While a snapshot is written in the background, records are also copied
+ * to a successor journal, "<file>.journal.next", sealed with the new
+ * snapshot's identity before that snapshot replaces the old one. Whichever
+ * of the two matches the snapshot found on load is replayed.
+ */
+public class Journal implements Closeable {
+
+    /** File signature, "GGJL". */
+    static final int MAGIC = 0x47474A4C;
+
+    /** Format version. */
+    static final int VERSION = 1;
+
+    /** Size of the header: signature, version, snapshot size and modification time. */
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+
+    static final byte REGISTER_PARTNER = 1;
+    static final byte REGISTER_SIMPLE_PRODUCT = 2;
+    static final byte REGISTER_AGGREGATE_PRODUCT = 3;
+    static final byte ACQUISITION = 4;
+    static final byte SALE = 5;
+    static final byte BREAKDOWN = 6;
+    static final byte PAY = 7;
+    static final byte ADVANCE_DATE = 8;
+    static final byte TOGGLE_NOTIFICATIONS = 9;
+    static final byte READ_NOTIFICATIONS = 10;
+    static final byte IMPORT = 11;
+    static final byte BULK_ACQUISITION = 12;
+    static final byte BASKET_SALE = 13;
+
+    private FileChannel _channel;
+
+    /** Number of records between forced writes; 0 never forces them. */
+    private int _syncInterval;
+
+    /** Records appended since the last forced write. */
+    private int _unsynced;
+
+    /** Journal receiving a copy of every record while a snapshot is written, if any. */
+    private Journal _successor;
+
+    private Journal(FileChannel channel, int syncInterval) {
+        _channel = channel;
+        _syncInterval = syncInterval;
+    }
+
+    /**
+     * @param snapshot
+     *          a snapshot file name.
+     * @return the journal file extending that snapshot.
+     */
+    static Path journalFor(String snapshot) {
+        return Path.of(snapshot + ".journal");
+    }
+
+    /**
+     * @param snapshot
+     *          a snapshot file name.
+     * @return the journal file that will extend the snapshot being written.
+     */
+    static Path successorFor(String snapshot) {
+        return Path.of(snapshot + ".journal.next");
+    }
+
+    /**
+     * Starts an empty journal for a snapshot that was just written, replacing
+     * any previous journal.
+     *
+     * @param journal
+     *          journal file.
+     * @param snapshot
+     *          snapshot file the journal extends.
+     * @param syncInterval
+     *          number of records between forced writes; 0 never forces them.
+     * @return the journal, ready for appending.
+     * @throws IOException
+     */
+    static Journal create(Path journal, Path snapshot, int syncInterval) throws IOException {
+        Journal created = createUnsealed(journal, syncInterval);
+        created.seal(snapshot);
+        return created;
+    }
+
+    /**
+     * Starts an empty journal for a snapshot that is not written yet. It
+     * matches no snapshot until sealed.
+     *
+     * @param journal
+     *          journal file.
+     * @param syncInterval
+     *          number of records between forced writes; 0 never forces them.
+     * @return the journal, ready for appending.
+     * @throws IOException
+     */
+    static Journal createUnsealed(Path journal, int syncInterval) throws IOException {
+        FileChannel channel = FileChannel.open(journal, StandardOpenOption.READ, StandardOpenOption.WRITE,
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        channel.position(HEADER_SIZE);
+        return new Journal(channel, syncInterval);
+    }
+
+    /**
+     * Writes the identity of the snapshot this journal extends into its
+     * header. Records may be appended concurrently.
+     *
+     * @param snapshot
+     *          snapshot file, already complete.
+     * @throws IOException
+     */
+    void seal(Path snapshot) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(Files.size(snapshot)).putLong(Files.getLastModifiedTime(snapshot).toMillis());
+        header.flip();
+        while(header.hasRemaining()) {
+            _channel.write(header, header.position());
+        }
+        _channel.force(true);
+    }
+
+    /**
+     * Copies every record appended from now on to another journal.
+     *
+     * @param successor
+     *          journal receiving the copies, or null to stop copying.
+     */
+    synchronized void setSuccessor(Journal successor) {
+        _successor = successor;
+    }
+
+    /**
+     * Replays the journal of a snapshot that was just loaded, then reopens it
+     * for appending. The journal and its successor are both candidates, so
+     * that a crash while a background save replaced the snapshot loses
+     * nothing. If neither belongs to the snapshot, a new empty journal is
+     * started.
+     *
+     * @param snapshot
+     *          snapshot file name the warehouse was loaded from.
+     * @param manager
+     *          manager holding the loaded warehouse, with no journal attached.
+     * @param syncInterval
+     *          number of records between forced writes; 0 never forces them.
+     * @return the journal, ready for appending.
+     * @throws IOException
+     *          if the journal cannot be read or one of its operations fails.
+     */
+    static Journal recover(String snapshot, WarehouseManager manager, int syncInterval) throws IOException {
+        Path journal = journalFor(snapshot);
+        Path successor = successorFor(snapshot);
+
+        for(Path candidate : new Path[] { journal, successor }) {
+            if(!Files.exists(candidate)) {
+                continue;
+            }
+
+            FileChannel channel = FileChannel.open(candidate, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                if(!matches(channel, Path.of(snapshot))) {
+                    channel.close();
+                    continue;
+                }
+
+                long end = replay(channel, manager);
+                channel.truncate(end);
+                channel.position(end);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+
+            if(candidate.equals(successor)) {
+                Files.move(successor, journal, StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.deleteIfExists(successor);
+            }
+            return new Journal(channel, syncInterval);
+        }
+
+        Files.deleteIfExists(successor);
+        return create(journal, Path.of(snapshot), syncInterval);
+    }
+
+    /** @return true if the journal header identifies the snapshot. */
+    private static boolean matches(FileChannel channel, Path snapshot) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while(header.hasRemaining() && channel.read(header) >= 0) {
+            // keep reading until the header is complete or the file ends
+        }
+        header.flip();
+
+        return header.remaining() == HEADER_SIZE && header.getInt() == MAGIC && header.getInt() == VERSION
+            && header.getLong() == Files.size(snapshot) && header.getLong() == Files.getLastModifiedTime(snapshot).toMillis();
+    }
+
+    /**
+     * Applies every complete record after the header.
+     *
+     * @return the position right after the last complete record.
+     */
+    private static long replay(FileChannel channel, WarehouseManager manager) throws IOException {
+        long position = HEADER_SIZE;
+        ByteBuffer prefix = ByteBuffer.allocate(4);
+
+        while(true) {
+            prefix.clear();
+            if(channel.read(prefix, position) < 4) {
+                return position;
+            }
+            int length = prefix.getInt(0);
+            if(length <= 0 || position + 4 + length + 8 > channel.size()) {
+                return position;
+            }
+
+            ByteBuffer record = ByteBuffer.allocate(length + 8);
+            while(record.hasRemaining() && channel.read(record, position + 4 + record.position()) >= 0) {
+                // keep reading until the record is complete
+            }
+            byte[] payload = new byte[length];
+            record.flip();
+            record.get(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if(record.getLong() != crc.getValue()) {
+                return position;
+            }
+
+            try {
+                apply(new DataInputStream(new ByteArrayInputStream(payload)), manager);
+            } catch (Exception e) {
+                throw new IOException("Journal record at " + position + " cannot be replayed", e);
+            }
+            position += 4 + length + 8;
+        }
+    }
+
+    private static void apply(DataInputStream in, WarehouseManager manager) throws Exception {
+        byte operation = in.readByte();
+
+        switch(operation) {
+            case REGISTER_PARTNER:
+                manager.registerPartner(in.readUTF(), in.readUTF(), in.readUTF());
+                break;
+            case REGISTER_SIMPLE_PRODUCT:
+                manager.registerSimpleProduct(in.readUTF());
+                break;
+            case REGISTER_AGGREGATE_PRODUCT:
+                String productId = in.readUTF();
+                int components = in.readInt();
+                List<String> productIds = new ArrayList<String>();
+                List<Integer> quantities = new ArrayList<Integer>();
+                for(int i = 0; i < components; i++) {
+                    productIds.add(in.readUTF());
+                    quantities.add(in.readInt());
+                }
+                manager.registerAggregateProduct(productId, productIds, quantities, in.readDouble());
+                break;
+            case ACQUISITION:
+                manager.registerAcquisitionTransaction(in.readUTF(), in.readUTF(), in.readDouble(), in.readInt());
+                break;
+            case SALE:
+                manager.registerSaleTransaction(in.readUTF(), in.readUTF(), in.readInt(), in.readInt());
+                break;
+            case BREAKDOWN:
+                manager.registerBreakdownTransaction(in.readUTF(), in.readUTF(), in.readInt());
+                break;
+            case PAY:
+                manager.pay(in.readInt());
+                break;
+            case ADVANCE_DATE:
+                manager.advanceDate(in.readInt());
+                break;
+            case TOGGLE_NOTIFICATIONS:
+                manager.togglePartnerNotifications(in.readUTF(), in.readUTF());
+                break;
+            case READ_NOTIFICATIONS:
+                manager.getPartnerNotifications(in.readUTF());
+                break;
+            case IMPORT:
+                int lineCount = in.readInt();
+                List<String> imported = new ArrayList<String>(lineCount);
+                for(int i = 0; i < lineCount; i++) {
+                    byte[] text = new byte[in.readInt()];
+                    in.readFully(text);
+                    imported.add(new String(text, StandardCharsets.UTF_8));
+                }
+                boolean failed = in.readBoolean();
+                try {
+                    manager.importLines(imported);
+                } catch (ImportFileException e) {
+                    // an import that failed partway is replayed up to the same error
+                    if(!failed) {
+                        throw e;
+                    }
+                }
+                break;
+            case BULK_ACQUISITION:
+                int count = in.readInt();
+                List<AcquisitionLine> lines = new ArrayList<AcquisitionLine>(count);
+                for(int i = 0; i < count; i++) {
+                    lines.add(new AcquisitionLine(in.readUTF(), in.readUTF(), in.readDouble(), in.readInt()));
+                }
+                manager.registerAcquisitionTransactions(lines);
+                break;
+            case BASKET_SALE:
+                int size = in.readInt();
+                List<SaleLine> basket = new ArrayList<SaleLine>(size);
+                for(int i = 0; i < size; i++) {
+                    basket.add(new SaleLine(in.readUTF(), in.readUTF(), in.readInt(), in.readInt()));
+                }
+                manager.registerSaleTransactions(basket);
+                break;
+            default:
+                throw new IOException("Unknown journal operation: " + operation);
+        }
+    }
+
+    void logRegisterPartner(String id, String name, String address) {
+        append(out -> {
+            out.writeByte(REGISTER_PARTNER);
+            out.writeUTF(id);
+            out.writeUTF(name);
+            out.writeUTF(address);
+        });
+    }
+
+    void logRegisterSimpleProduct(String productId) {
+        append(out -> {
+            out.writeByte(REGISTER_SIMPLE_PRODUCT);
+            out.writeUTF(productId);
+        });
+    }
+
+    void logRegisterAggregateProduct(String productId, List<String> productIds, List<Integer> quantities, double alpha) {
+        append(out -> {
+            out.writeByte(REGISTER_AGGREGATE_PRODUCT);
+            out.writeUTF(productId);
+            out.writeInt(productIds.size());
+            for(int i = 0; i < productIds.size(); i++) {
+                out.writeUTF(productIds.get(i));
+                out.writeInt(quantities.get(i));
+            }
+            out.writeDouble(alpha);
+        });
+    }
+
+    void logAcquisition(String partnerId, String productId, double price, int quantity) {
+        append(out -> {
+            out.writeByte(ACQUISITION);
+            out.writeUTF(partnerId);
+            out.writeUTF(productId);
+            out.writeDouble(price);
+            out.writeInt(quantity);
+        });
+    }
+
+    void logBulkAcquisition(List<AcquisitionLine> lines) {
+        append(out -> {
+            out.writeByte(BULK_ACQUISITION);
+            out.writeInt(lines.size());
+            for(AcquisitionLine line : lines) {
+                out.writeUTF(line.getPartnerId());
+                out.writeUTF(line.getProductId());
+                out.writeDouble(line.getPrice());
+                out.writeInt(line.getQuantity());
+            }
+        });
+    }
+
+    void logBasketSale(List<SaleLine> lines) {
+        append(out -> {
+            out.writeByte(BASKET_SALE);
+            out.writeInt(lines.size());
+            for(SaleLine line : lines) {
+                out.writeUTF(line.getPartnerId());
+                out.writeUTF(line.getProductId());
+                out.writeInt(line.getDeadline());
+                out.writeInt(line.getAmount());
+            }
+        });
+    }
+
+    void logSale(String partnerId, String productId, int deadline, int amount) {
+        append(out -> {
+            out.writeByte(SALE);
+            out.writeUTF(partnerId);
+            out.writeUTF(productId);
+            out.writeInt(deadline);
+            out.writeInt(amount);
+        });
+    }
+
+    void logBreakdown(String partnerId, String productId, int amount) {
+        append(out -> {
+            out.writeByte(BREAKDOWN);
+            out.writeUTF(partnerId);
+            out.writeUTF(productId);
+            out.writeInt(amount);
+        });
+    }
+
+    void logPay(int transactionId) {
+        append(out -> {
+            out.writeByte(PAY);
+            out.writeInt(transactionId);
+        });
+    }
+
+    void logAdvanceDate(int offset) {
+        append(out -> {
+            out.writeByte(ADVANCE_DATE);
+            out.writeInt(offset);
+        });
+    }
+
+    void logToggleNotifications(String productId, String partnerId) {
+        append(out -> {
+            out.writeByte(TOGGLE_NOTIFICATIONS);
+            out.writeUTF(productId);
+            out.writeUTF(partnerId);
+        });
+    }
+
+    void logReadNotifications(String partnerId) {
+        append(out -> {
+            out.writeByte(READ_NOTIFICATIONS);
+            out.writeUTF(partnerId);
+        });
+    }
+
+    /**
+     * @param lines
+     *          every line the import applied, including the one it failed on.
+     * @param failed
+     *          whether the import failed on its last line.
+     */
+    void logImport(List<String> lines, boolean failed) {
+        append(out -> {
+            out.writeByte(IMPORT);
+            out.writeInt(lines.size());
+            for(String line : lines) {
+                byte[] text = line.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(text.length);
+                out.write(text);
+            }
+            out.writeBoolean(failed);
+        });
+    }
+
+    /** Writes the fields of one record. */
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Appends one record, forcing the journal to storage when the sync
+     * interval is reached.
+     *
+     * @throws UncheckedIOException
+     *          if the record cannot be written: the operation was applied but is not durable.
+     */
+    private void append(RecordWriter writer) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            writer.write(new DataOutputStream(bytes));
+            byte[] payload = bytes.toByteArray();
+
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            ByteBuffer record = ByteBuffer.allocate(4 + payload.length + 8);
+            record.putInt(payload.length).put(payload).putLong(crc.getValue());
+            append(record.flip());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private synchronized void append(ByteBuffer record) throws IOException {
+        ByteBuffer remaining = record.duplicate();
+        while(remaining.hasRemaining()) {
+            _channel.write(remaining);
+        }
+
+        _unsynced++;
+        if(_syncInterval > 0 && _unsynced >= _syncInterval) {
+            sync();
+        }
+        if(_successor != null) {
+            _successor.append(record);
+        }
+    }
+
+    /**
+     * Forces every appended record to storage.
+     *
+     * @throws IOException
+     */
+    synchronized void sync() throws IOException {
+        _channel.force(false);
+        _unsynced = 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(_channel.isOpen()) {
+            if(_syncInterval > 0 && _unsynced > 0) {
+                sync();
+            }
+            _channel.close();
+        }
+    }
+}
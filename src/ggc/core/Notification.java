@@ -2,6 +2,10 @@ package ggc.core;
 import java.io.Serializable;
 
 public class Notification implements Serializable {
+
+    /** Serial number for serialization. */
+    private static final long serialVersionUID = 1515868589601566050L;
+
     private String _type;
     private Product _product;
     private double _price;
@@ -12,6 +16,18 @@ public class Notification implements Serializable {
         _price = price;
     }
 
+    String getType() {
+        return _type;
+    }
+
+    Product getProduct() {
+        return _product;
+    }
+
+    double getPrice() {
+        return _price;
+    }
+
     public String toString() {
         return _type + "|" + _product.getId() + "|" + Math.round(_price);
 
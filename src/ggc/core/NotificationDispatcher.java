@@ -0,0 +1,157 @@
+package ggc.core;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of product events waiting to be delivered to the partners.
+ * Products post an event once and return immediately; the fan-out to every
+ * interested partner happens in batches, either on the delivery thread once
+ * the queue is full, or when someone is about to look at (or change) who
+ * gets notified.
+ *
+ * Products post while locked by the transaction that changed them, so posting
+ * never delivers: partners are only updated by the delivery thread and by
+ * flush, which hold no product lock.
+ */
+public class NotificationDispatcher implements Serializable {
+
+    /** Serial number for serialization. */
+    private static final long serialVersionUID = 202110171200L;
+
+    /** Default number of events kept before delivering them. */
+    static final int DEFAULT_CAPACITY = 1024;
+
+    /** Delivers full batches, off the threads that post them. Shared by every dispatcher. */
+    private static final ExecutorService DELIVERY = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "warehouse-notifications");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Number of pending events that has the delivery thread deliver them. */
+    private int _capacity;
+
+    /** Pending events, oldest first. */
+    private Deque<Event> _pending = new ArrayDeque<Event>();
+
+    /** Whether posted events are dropped, as while importing a file. */
+    private transient boolean _muted;
+
+    /** Whether a delivery of the pending events is queued on the delivery thread. */
+    private transient boolean _scheduled;
+
+    /** Held while delivering, so that batches reach the partners in the order they were posted. */
+    private transient ReentrantLock _delivery = new ReentrantLock();
+
+    NotificationDispatcher() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity
+     *          number of pending events that has them delivered.
+     */
+    NotificationDispatcher(int capacity) {
+        _capacity = capacity;
+    }
+
+    /**
+     * Queues an event. Once the queue is full, the whole batch is handed
+     * to the delivery thread.
+     * 
+     * @param type
+     *          event type, NEW or BARGAIN.
+     * @param product
+     *          product that changed.
+     * @param price
+     *          price that triggered the event.
+     */
+    synchronized void post(String type, Product product, double price) {
+        if(_muted) {
+            return;
+        }
+        _pending.addLast(new Event(type, product, price));
+
+        if(_pending.size() >= _capacity && !_scheduled) {
+            _scheduled = true;
+            DELIVERY.execute(this::flush);
+        }
+    }
+
+    /**
+     * Delivers every pending event, in the order they were posted, after
+     * any batch the delivery thread is delivering.
+     */
+    void flush() {
+        _delivery.lock();
+        try {
+            Deque<Event> batch;
+            synchronized(this) {
+                batch = _pending;
+                _pending = new ArrayDeque<Event>();
+                _scheduled = false;
+            }
+            for(Event event : batch) {
+                event._product.deliver(event._type, event._price);
+            }
+        } finally {
+            _delivery.unlock();
+        }
+    }
+
+    /**
+     * @param muted
+     *          true to drop the events posted from now on.
+     */
+    synchronized void setMuted(boolean muted) {
+        _muted = muted;
+    }
+
+    /**
+     * Waits for the batch being delivered, if any, and keeps further ones
+     * from being delivered until releaseDeliveries.
+     */
+    void holdDeliveries() {
+        _delivery.lock();
+    }
+
+    void releaseDeliveries() {
+        _delivery.unlock();
+    }
+
+    synchronized int getPendingCount() {
+        return _pending.size();
+    }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        _delivery = new ReentrantLock();
+    }
+
+    /** A product event waiting to be delivered. */
+    private static class Event implements Serializable {
+        private static final long serialVersionUID = 202110171200L;
+
+        private String _type;
+        private Product _product;
+        private double _price;
+
+        Event(String type, Product product, double price) {
+            _type = type;
+            _product = product;
+            _price = price;
+        }
+    }
+}
@@ -1,83 +1,323 @@
 package ggc.core;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.io.FileReader;
-import java.io.BufferedReader;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import ggc.core.exception.BadEntryException;
 import ggc.core.exception.DuplicatePartnerException;
+import ggc.core.exception.InvalidDaysException;
+import ggc.core.exception.UnavailableProductQuantityException;
 import ggc.core.exception.UnknownPartnerException;
 import ggc.core.exception.UnknownProductException;
+import ggc.core.exception.UnknownTransactionException;
 
+/**
+ * Imports a text file into a warehouse. Each line is first tokenized and
+ * converted into an entry, which does not need the warehouse, and then
+ * applied to the warehouse, in file order.
+ *
+ * With more than one worker, the file is cut into chunks of whole lines
+ * that the workers convert in parallel, while the calling thread applies
+ * the entries of each chunk as soon as it is ready. Errors found while
+ * converting a line are kept in its entry and raised when it is applied,
+ * so the same error is reported, at the same point, as when importing
+ * with a single thread.
+ *
+ * Besides partners and batches, a file may hold transaction history:
+ * acquisitions, sales by credit, breakdowns, payments and date advances.
+ * They are applied directly to the warehouse, in file order, and take
+ * transaction IDs in that order, which is how payments refer to them.
+ * Product notifications are dropped while importing: the partners get
+ * none for what the file holds.
+ *
+ * The lines applied may be recorded, so that an import, even one that
+ * failed partway, can be repeated without the file (see Journal).
+ */
 public class Parser {
 
+  /** Size of the chunks converted by each worker. */
+  private static final int CHUNK_SIZE = 256 * 1024;
+
   // It could be WarehouseManager too. Or something else.
   private Warehouse _store;
 
+  /** Threads converting lines; 1 converts them on the calling thread. */
+  private int _workers;
+
+  /** Receives every line applied, including one that failed; null if they are not recorded. */
+  private List<String> _applied;
+
   public Parser(Warehouse w) {
+    this(w, 1);
+  }
+
+  public Parser(Warehouse w, int workers) {
+    this(w, workers, null);
+  }
+
+  /**
+   * @param applied
+   *          list receiving the text of every line applied, including one
+   *          that failed, or null.
+   */
+  Parser(Warehouse w, int workers, List<String> applied) {
     _store = w;
+    _workers = Math.max(1, workers);
+    _applied = applied;
+  }
+
+  /**
+   * @return the number of lines read.
+   */
+  int parseFile(String filename) throws IOException, BadEntryException, DuplicatePartnerException, UnknownPartnerException, NumberFormatException, UnknownProductException{
+    return parse(() -> _workers > 1 ? parseInParallel(filename) : parseInSequence(new ImportTokenizer(Path.of(filename))));
   }
 
-  void parseFile(String filename) throws IOException, BadEntryException, DuplicatePartnerException, UnknownPartnerException, NumberFormatException, UnknownProductException{
-    try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
-      String line;
+  /**
+   * Applies lines recorded from an earlier import, on the calling thread.
+   *
+   * @return the number of lines read.
+   */
+  int parseLines(List<String> lines) throws IOException, BadEntryException, DuplicatePartnerException, UnknownPartnerException, UnknownProductException {
+    byte[] text = String.join("\n", lines).getBytes(StandardCharsets.UTF_8);
+    return parse(() -> parseInSequence(new ImportTokenizer(text)));
+  }
+
+  /** Reads and applies the lines of a file or of recorded lines. */
+  private interface Source {
+    int apply() throws IOException, BadEntryException, DuplicatePartnerException, UnknownPartnerException, UnknownProductException;
+  }
 
-      while ((line = reader.readLine()) != null)
-        parseLine(line);
+  private int parse(Source source) throws IOException, BadEntryException, DuplicatePartnerException, UnknownPartnerException, UnknownProductException {
+    int lines;
+
+    _store.flushNotifications();
+    _store.setNotificationsMuted(true);
+    try {
+      lines = source.apply();
+    } finally {
+      _store.setNotificationsMuted(false);
     }
 
     /*
     * Clear all notifications after file has been parsed
     */ 
+    _store.flushNotifications();
     for(Partner partner : _store.getPartners()) {
       partner.getNotifications();
     }
+    return lines;
+  }
+
+  private int parseInSequence(ImportTokenizer lines) throws IOException, BadEntryException, DuplicatePartnerException, UnknownPartnerException, UnknownProductException {
+    try (ImportTokenizer tokenizer = lines) {
+      while (tokenizer.next())
+        apply(parseLine(tokenizer, _applied != null));
+      return tokenizer.getLineNumber();
+    }
+  }
+
+  private int parseInParallel(String filename) throws IOException, BadEntryException, DuplicatePartnerException, UnknownPartnerException, UnknownProductException {
+    ExecutorService workers = Executors.newFixedThreadPool(_workers, task -> {
+      Thread thread = new Thread(task, "import-worker");
+      thread.setDaemon(true);
+      return thread;
+    });
+    // chunks being converted, in file order; bounded to keep memory use flat
+    Deque<Future<List<Entry>>> pending = new ArrayDeque<>();
+    boolean keepLines = _applied != null;
+    int lines = 0;
+
+    try (ImportTokenizer.ChunkReader chunks = new ImportTokenizer.ChunkReader(Path.of(filename), CHUNK_SIZE)) {
+      byte[] chunk = chunks.next();
+
+      while (chunk != null || !pending.isEmpty()) {
+        while (chunk != null && pending.size() < 2 * _workers) {
+          byte[] submitted = chunk;
+          pending.add(workers.submit(() -> parseChunk(submitted, keepLines)));
+          chunk = chunks.next();
+        }
+
+        for (Entry entry : converted(pending.poll(), filename)) {
+          apply(entry);
+          lines++;
+        }
+      }
+    } finally {
+      workers.shutdownNow();
+    }
+    return lines;
+  }
+
+  private static List<Entry> parseChunk(byte[] chunk, boolean keepLines) throws IOException {
+    List<Entry> entries = new ArrayList<>();
+    try (ImportTokenizer tokenizer = new ImportTokenizer(chunk)) {
+      while (tokenizer.next())
+        entries.add(parseLine(tokenizer, keepLines));
+    }
+    return entries;
+  }
+
+  private static List<Entry> converted(Future<List<Entry>> chunk, String filename) throws IOException {
+    try {
+      return chunk.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while importing " + filename);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException)e.getCause();
+      if (e.getCause() instanceof Error)
+        throw (Error)e.getCause();
+      throw e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * A line converted for the warehouse. The fields used depend on the kind
+   * of line; errors are kept to be raised when the entry is applied.
+   */
+  private static class Entry {
+    static final byte PARTNER = 1;
+    static final byte SIMPLE_BATCH = 2;
+    static final byte AGGREGATE_BATCH = 3;
+    static final byte ACQUISITION = 4;
+    static final byte SALE = 5;
+    static final byte BREAKDOWN = 6;
+    static final byte PAYMENT = 7;
+    static final byte ADVANCE = 8;
+
+    byte _kind;
+
+    /** Raised before anything else is done with the entry. */
+    Exception _error;
+
+    /** The line, for transaction history, whose errors are reported with it, or for any entry if lines are recorded. */
+    String _line;
+
+    /** Partner ID, name and address; or product and partner IDs; or partner and product IDs. */
+    String[] _text;
+
+    double _price;
+
+    /** Stock of a batch, or quantity of a transaction. */
+    int _quantity;
+
+    /** Deadline of a sale, ID of a paid transaction, or days to advance. */
+    int _number;
+
+    /** Raised after looking up the product and partner of an aggregate batch. */
+    RuntimeException _batchError;
+
+    double _aggravation;
+    RuntimeException _aggravationError;
+
+    /** Recipe components, looked up in order, and their quantities. */
+    String[] _components;
+    int[] _quantities;
+
+    /** Raised after looking up the components, if there is no such product yet. */
+    Exception _recipeError;
+  }
+
+  /** @param keepLine whether the entry keeps its line, to be recorded when applied. */
+  private static Entry parseLine(ImportTokenizer line, boolean keepLine) {
+    Entry entry = new Entry();
+    try {
+      if (line.fieldIs(0, "PARTNER"))
+        parsePartner(line, entry);
+      else if (line.fieldIs(0, "BATCH_S"))
+        parseSimpleProduct(line, entry);
+      else if (line.fieldIs(0, "BATCH_M"))
+        parseAggregateProduct(line, entry);
+      else if (line.fieldIs(0, "ACQUISITION"))
+        parseAcquisition(line, entry);
+      else if (line.fieldIs(0, "SALE"))
+        parseSale(line, entry);
+      else if (line.fieldIs(0, "BREAKDOWN"))
+        parseBreakdown(line, entry);
+      else if (line.fieldIs(0, "PAYMENT"))
+        parsePayment(line, entry);
+      else if (line.fieldIs(0, "ADVANCE"))
+        parseAdvance(line, entry);
+      else
+        throw new BadEntryException("Invalid type element: " + line.field(0));
+    } catch (BadEntryException | RuntimeException e) {
+      entry._error = e;
+    }
+    if (keepLine && entry._line == null)
+      entry._line = line.line();
+    return entry;
   }
 
-  private void parseLine(String line) throws BadEntryException, BadEntryException, DuplicatePartnerException, UnknownPartnerException, NumberFormatException, UnknownProductException {
-    String[] components = line.split("\\|");
+  private void apply(Entry entry) throws BadEntryException, DuplicatePartnerException, UnknownPartnerException, UnknownProductException {
+    if (_applied != null)
+      _applied.add(entry._line);
+    raise(entry._error);
 
-    switch (components[0]) {
-      case "PARTNER":
-        parsePartner(components, line);
+    switch (entry._kind) {
+      case Entry.PARTNER:
+        // add code here to
+        // register partner with id, name, address in _store;
+        _store.registerPartner(entry._text[0], entry._text[1], entry._text[2]);
         break;
-      case "BATCH_S":
-        parseSimpleProduct(components, line);
+      case Entry.SIMPLE_BATCH:
+        applySimpleProduct(entry);
         break;
-
-      case "BATCH_M":
-        parseAggregateProduct(components, line);
+      case Entry.AGGREGATE_BATCH:
+        applyAggregateProduct(entry);
         break;
-        
       default:
-        throw new BadEntryException("Invalid type element: " + components[0]);
+        try {
+          applyTransaction(entry);
+        } catch (UnavailableProductQuantityException | UnknownTransactionException | InvalidDaysException e) {
+          throw new BadEntryException(entry._line, e);
+        }
+        break;
     }
   }
 
+  private static void raise(Exception error) throws BadEntryException {
+    if (error instanceof RuntimeException)
+      throw (RuntimeException)error;
+    if (error != null)
+      throw (BadEntryException)error;
+  }
+
   //PARTNER|id|nome|endereço
-  private void parsePartner(String[] components, String line) throws BadEntryException, DuplicatePartnerException {
-    if (components.length != 4)
-      throw new BadEntryException("Invalid partner with wrong number of fields (4): " + line);
-    
-    String id = components[1];
-    String name = components[2];
-    String address = components[3];
+  private static void parsePartner(ImportTokenizer line, Entry entry) throws BadEntryException {
+    if (line.fieldCount() != 4)
+      throw new BadEntryException("Invalid partner with wrong number of fields (4): " + line.line());
     
-    // add code here to
-    // register partner with id, name, address in _store;
-    _store.registerPartner(id, name, address);
+    entry._kind = Entry.PARTNER;
+    entry._text = new String[] { line.field(1), line.field(2), line.field(3) };
   }
 
   //BATCH_S|idProduto|idParceiro|prec ̧o|stock-actual
-  private void parseSimpleProduct(String[] components, String line) throws BadEntryException, UnknownPartnerException, UnknownProductException {
-    if (components.length != 5)
-      throw new BadEntryException("Invalid number of fields (4) in simple batch description: " + line);
+  private static void parseSimpleProduct(ImportTokenizer line, Entry entry) throws BadEntryException {
+    if (line.fieldCount() != 5)
+      throw new BadEntryException("Invalid number of fields (4) in simple batch description: " + line.line());
     
-    String idProduct = components[1];
-    String idPartner = components[2];
-    double price = Double.parseDouble(components[3]);
-    int stock = Integer.parseInt(components[4]);
+    entry._kind = Entry.SIMPLE_BATCH;
+    entry._text = new String[] { line.field(1), line.field(2) };
+    entry._price = line.doubleField(3);
+    entry._quantity = line.intField(4);
+  }
+
+  private void applySimpleProduct(Entry entry) throws UnknownPartnerException, UnknownProductException {
+    String idProduct = entry._text[0];
+    String idPartner = entry._text[1];
     
     // add code here to do the following
     //if (!_store does not have product with idProduct)
@@ -94,35 +334,85 @@ public class Parser {
 
     // add code here to
     // add batch with price, stock and partner to product
-    product.addBatch(price, stock, partner);
+    product.addBatch(entry._price, entry._quantity, partner);
   }
  
     
   //BATCH_M|idProduto|idParceiro|prec ̧o|stock-actual|agravamento|componente-1:quantidade-1#...#componente-n:quantidade-n
-  private void parseAggregateProduct(String[] components, String line) throws BadEntryException, NumberFormatException, UnknownPartnerException, UnknownProductException {
-    if (components.length != 7)
-      throw new BadEntryException("Invalid number of fields (7) in aggregate batch description: " + line);
+  private static void parseAggregateProduct(ImportTokenizer line, Entry entry) throws BadEntryException {
+    if (line.fieldCount() != 7)
+      throw new BadEntryException("Invalid number of fields (7) in aggregate batch description: " + line.line());
     
-    String idProduct = components[1];
-    String idPartner = components[2];
+    entry._kind = Entry.AGGREGATE_BATCH;
+    entry._text = new String[] { line.field(1), line.field(2) };
+
+    try {
+      entry._price = line.doubleField(3);
+      entry._quantity = line.intField(4);
+    } catch (NumberFormatException e) {
+      entry._batchError = e;
+    }
+    try {
+      entry._aggravation = line.doubleField(5);
+    } catch (NumberFormatException e) {
+      entry._aggravationError = e;
+    }
+
+    // componente-1:quantidade-1#...#componente-n:quantidade-n, scanned in place
+    String[] components = new String[4];
+    int[] quantities = new int[4];
+    int count = 0;
+    int end = line.fieldEnd(6);
+    for (int start = line.fieldStart(6); start < end && entry._recipeError == null; ) {
+      int next = line.indexOf('#', start, end);
+      int colon = line.indexOf(':', start, next);
+      if (colon == next) {
+        entry._recipeError = new BadEntryException("Invalid recipe component in aggregate batch description: " + line.line());
+        break;
+      }
+      int quantityEnd = line.indexOf(':', colon + 1, next);
+
+      if (count == components.length) {
+        components = Arrays.copyOf(components, count * 2);
+        quantities = Arrays.copyOf(quantities, count * 2);
+      }
+      components[count] = line.text(start, colon);
+      count++;
+      try {
+        quantities[count - 1] = line.parseInt(colon + 1, quantityEnd);
+      } catch (NumberFormatException e) {
+        // the component is still looked up before the quantity is found wrong
+        entry._recipeError = e;
+      }
+      start = next + 1;
+    }
+    entry._components = Arrays.copyOf(components, count);
+    entry._quantities = Arrays.copyOf(quantities, count);
+  }
+
+  private void applyAggregateProduct(Entry entry) throws BadEntryException, UnknownPartnerException, UnknownProductException {
+    String idProduct = entry._text[0];
+    String idPartner = entry._text[1];
 
     // add code here to do the following
     if (!_store.productExists(idProduct)) {
       ArrayList<Product> products = new ArrayList<>();
       ArrayList<Integer> quantities = new ArrayList<>();
       
-      for (String component : components[6].split("#")) {
-        String[] recipeComponent = component.split(":");
+      for (int i = 0; i < entry._components.length; i++) {
         // add code here to 
         // products.add(get Product with id recipeComponent[0]);
-        products.add(_store.getProductWithId(recipeComponent[0]));
-        quantities.add(Integer.parseInt(recipeComponent[1]));
+        products.add(_store.getProductWithId(entry._components[i]));
+        quantities.add(entry._quantities[i]);
       }
+      raise(entry._recipeError);
+      if (entry._aggravationError != null)
+        throw entry._aggravationError;
       
       // add code here to 
       // register in _store aggregate product with idProduct, aggravation=Double.parseDouble(components[5])
       // and recipe given by products and quantities);
-      _store.registerAggregateProduct(idProduct, products, quantities, Double.parseDouble(components[5]));
+      _store.registerAggregateProduct(idProduct, products, quantities, entry._aggravation);
     }
     
     // add code here to 
@@ -131,10 +421,94 @@ public class Parser {
     Product product = _store.getProductWithId(idProduct);
     Partner partner = _store.getPartnerWithId(idPartner);
 
-    double price = Double.parseDouble(components[3]);
-    int stock = Integer.parseInt(components[4]);
+    if (entry._batchError != null)
+      throw entry._batchError;
     // add code here to
     // add batch with price, stock and partner to product
-    product.addBatch(price, stock, partner);
+    product.addBatch(entry._price, entry._quantity, partner);
+  }
+
+  //ACQUISITION|idParceiro|idProduto|preço|quantidade
+  private static void parseAcquisition(ImportTokenizer line, Entry entry) throws BadEntryException {
+    if (line.fieldCount() != 5)
+      throw new BadEntryException("Invalid number of fields (5) in acquisition description: " + line.line());
+
+    entry._kind = Entry.ACQUISITION;
+    entry._line = line.line();
+    entry._text = new String[] { line.field(1), line.field(2) };
+    entry._price = line.doubleField(3);
+    entry._quantity = line.intField(4);
+  }
+
+  //SALE|idParceiro|idProduto|prazo|quantidade
+  private static void parseSale(ImportTokenizer line, Entry entry) throws BadEntryException {
+    if (line.fieldCount() != 5)
+      throw new BadEntryException("Invalid number of fields (5) in sale description: " + line.line());
+
+    entry._kind = Entry.SALE;
+    entry._line = line.line();
+    entry._text = new String[] { line.field(1), line.field(2) };
+    entry._number = line.intField(3);
+    entry._quantity = line.intField(4);
+  }
+
+  //BREAKDOWN|idParceiro|idProduto|quantidade
+  private static void parseBreakdown(ImportTokenizer line, Entry entry) throws BadEntryException {
+    if (line.fieldCount() != 4)
+      throw new BadEntryException("Invalid number of fields (4) in breakdown description: " + line.line());
+
+    entry._kind = Entry.BREAKDOWN;
+    entry._line = line.line();
+    entry._text = new String[] { line.field(1), line.field(2) };
+    entry._quantity = line.intField(3);
+  }
+
+  //PAYMENT|idTransacção
+  private static void parsePayment(ImportTokenizer line, Entry entry) throws BadEntryException {
+    if (line.fieldCount() != 2)
+      throw new BadEntryException("Invalid number of fields (2) in payment description: " + line.line());
+
+    entry._kind = Entry.PAYMENT;
+    entry._line = line.line();
+    entry._number = line.intField(1);
+  }
+
+  //ADVANCE|dias
+  private static void parseAdvance(ImportTokenizer line, Entry entry) throws BadEntryException {
+    if (line.fieldCount() != 2)
+      throw new BadEntryException("Invalid number of fields (2) in date advance description: " + line.line());
+
+    entry._kind = Entry.ADVANCE;
+    entry._line = line.line();
+    entry._number = line.intField(1);
+  }
+
+  /**
+   * Applies a line of transaction history, as the matching menu command
+   * would, without going through the warehouse manager. An acquisition
+   * of an unknown product registers it as a simple product first.
+   */
+  private void applyTransaction(Entry entry) throws UnknownPartnerException, UnknownProductException, UnavailableProductQuantityException, UnknownTransactionException, InvalidDaysException {
+    switch (entry._kind) {
+      case Entry.ACQUISITION: {
+        Partner partner = _store.getPartnerWithId(entry._text[0]);
+        if (!_store.productExists(entry._text[1]))
+          _store.registerSimpleProduct(entry._text[1]);
+        _store.registerAcquisitionTransaction(partner, _store.getProductWithId(entry._text[1]), entry._price, entry._quantity);
+        break;
+      }
+      case Entry.SALE:
+        _store.registerSaleTransaction(_store.getPartnerWithId(entry._text[0]), _store.getProductWithId(entry._text[1]), entry._number, entry._quantity);
+        break;
+      case Entry.BREAKDOWN:
+        _store.registerBreakdownTransaction(_store.getPartnerWithId(entry._text[0]), _store.getProductWithId(entry._text[1]), entry._quantity);
+        break;
+      case Entry.PAYMENT:
+        _store.pay(_store.getTransactionWithId(entry._number));
+        break;
+      default:
+        _store.advanceDate(entry._number);
+        break;
+    }
   }
-}
\ No newline at end of file
+}
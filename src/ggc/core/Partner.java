@@ -4,12 +4,18 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 import java.io.Serializable;
 
 
 public class Partner implements ProductObserver, Serializable {
+
+    /** Serial number for serialization. */
+    private static final long serialVersionUID = 8815425719820201181L;
+
     private String _name;
     private String _address;
     private String _id;
@@ -21,9 +27,14 @@ public class Partner implements ProductObserver, Serializable {
     private double _acquisitionsValue;
     private List<Acquisition> _acquisitions = new ArrayList<Acquisition>();
     private List<Sale> _sales = new ArrayList<Sale>();
+    /** Paid transactions of this partner, by transaction ID. */
+    private NavigableMap<Integer, Transaction> _payments = new TreeMap<Integer, Transaction>();
     private Set<Batch> _batches = new TreeSet<Batch>(new BatchComparator());
     private List<Notification> _notifications = new ArrayList<Notification>();
 
+    /** Whether the state written to snapshots changed since the last checkpoint. */
+    private boolean _dirty = true;
+
     Partner(String id, String name, String address) {
         this(id, name, address, new DefaultDeliveryMode());
     }
@@ -44,23 +55,121 @@ public class Partner implements ProductObserver, Serializable {
         return _id;
     }
 
+    String getName() {
+        return _name;
+    }
+
+    String getAddress() {
+        return _address;
+    }
+
+    double getAcquisitionsValue() {
+        return _acquisitionsValue;
+    }
+
+    double getBaseValues() {
+        return _baseValues;
+    }
+
+    double getTotalSalesValue() {
+        return _totalSalesValue;
+    }
+
+    boolean isDirty() {
+        return _dirty;
+    }
+
+    void markClean() {
+        _dirty = false;
+    }
+
+    /**
+     * Restores the accumulated values read from a snapshot.
+     */
+    void restoreValues(double acquisitionsValue, double baseValues, double totalSalesValue) {
+        _acquisitionsValue = acquisitionsValue;
+        _baseValues = baseValues;
+        _totalSalesValue = totalSalesValue;
+        _dirty = true;
+    }
+
+    /**
+     * Files a transaction read from a snapshot, without changing the accumulated values.
+     */
+    void restoreTransaction(Transaction transaction) {
+        if(transaction instanceof Acquisition) {
+            _acquisitions.add((Acquisition)transaction);
+        } else if(transaction instanceof Sale) {
+            _sales.add((Sale)transaction);
+            if(transaction.isPaid()) {
+                addPayment(transaction);
+            }
+        }
+    }
+
+    /**
+     * Files transactions read later from a snapshot, older than every
+     * transaction filed so far, without changing the accumulated values.
+     */
+    void restoreHistory(List<Transaction> history) {
+        List<Acquisition> acquisitions = new ArrayList<Acquisition>();
+        List<Sale> sales = new ArrayList<Sale>();
+
+        for(Transaction transaction : history) {
+            if(transaction instanceof Acquisition) {
+                acquisitions.add((Acquisition)transaction);
+            } else if(transaction instanceof Sale) {
+                sales.add((Sale)transaction);
+                if(transaction.isPaid()) {
+                    addPayment(transaction);
+                }
+            }
+        }
+
+        acquisitions.addAll(_acquisitions);
+        _acquisitions = acquisitions;
+        sales.addAll(_sales);
+        _sales = sales;
+    }
+
+    /**
+     * @return the pending notifications, leaving them pending.
+     */
+    synchronized List<Notification> peekNotifications() {
+        return Collections.unmodifiableList(_notifications);
+    }
+
+    void restoreNotification(Notification notification) {
+        _notifications.add(notification);
+        _dirty = true;
+    }
+
+    /**
+     * Drops the pending notifications, before restoring those read from a snapshot.
+     */
+    void clearNotifications() {
+        _notifications.clear();
+        _dirty = true;
+    }
+
     double getPoints() {
         return _points;
     }
 
-    void setPoints(double points) {
+    synchronized void setPoints(double points) {
         _points = points;
+        _dirty = true;
     }
 
     Collection<Batch> getBatches() {
         return _batches;
     }
 
-    void addBatch(Batch batch) {
+    synchronized void addBatch(Batch batch) {
         _batches.add(batch);
     }
 
-    void removeBatch(Batch batch) {
+    synchronized void removeBatch(Batch batch) {
         _batches.remove(batch);
     }
 
@@ -72,28 +181,60 @@ public class Partner implements ProductObserver, Serializable {
         return _sales;
     }
 
-    List<Notification> getNotifications() {
+    Collection<Transaction> getPayments() {
+        return Collections.unmodifiableCollection(_payments.values());
+    }
+
+    /**
+     * @param fromId
+     *          lowest transaction ID to include.
+     * @param limit
+     *          maximum number of payments returned.
+     * @return a page of this partner's payments, ordered by transaction ID.
+     */
+    synchronized List<Transaction> getPayments(int fromId, int limit) {
+        List<Transaction> page = new ArrayList<Transaction>();
+
+        for(Transaction transaction : _payments.tailMap(fromId, true).values()) {
+            if(page.size() >= limit) {
+                break;
+            }
+            page.add(transaction);
+        }
+
+        return Collections.unmodifiableList(page);
+    }
+
+    synchronized void addPayment(Transaction transaction) {
+        _payments.put(transaction.getId(), transaction);
+    }
+
+    synchronized List<Notification> getNotifications() {
         List<Notification> _notificationsCopy = _notifications;
         _notifications = new ArrayList<Notification>();
+        _dirty = true;
         return Collections.unmodifiableList(_notificationsCopy);
     }
 
-    void addSale(Sale sale) {
+    synchronized void addSale(Sale sale) {
         _sales.add(sale);
         _baseValues += sale.getBaseValue();
+        _dirty = true;
     }
 
     PartnerState getStatus() {
         return _status;
     }
 
-    void setStatus(PartnerState status) {
+    synchronized void setStatus(PartnerState status) {
         _status = status;
+        _dirty = true;
     } 
 
-    void addAcquisition(Acquisition acquisition) {
+    synchronized void addAcquisition(Acquisition acquisition) {
         _acquisitions.add(acquisition);
         _acquisitionsValue += acquisition.getBaseValue();
+        _dirty = true;
     }
 
     double calculateAcquisitionsValue() {
@@ -106,13 +247,16 @@ public class Partner implements ProductObserver, Serializable {
         return total;
     }
 
-    void paySale(SaleByCredit sale) {
+    synchronized void paySale(SaleByCredit sale) {
         _status.pay(sale);
         _totalSalesValue += sale.getTotalValue();
+        addPayment(sale);
+        _dirty = true;
     }
 
-    public void update(String type, Product product, double price) {
+    public synchronized void update(String type, Product product, double price) {
         _notifications.add(_deliveryMode.deliverNotification(type, product, price));
+        _dirty = true;
     }
 
     @Override
@@ -135,8 +279,44 @@ public class Partner implements ProductObserver, Serializable {
         return partner.getId().equals(_id);
     }
 
-    public String toString() {
+    public synchronized String toString() {
         return _id + "|" + _name + "|" + _address + "|" +_status + "|" + Math.round(_points) + "|" 
         + Math.round(_acquisitionsValue) + "|" + Math.round(_baseValues) + "|" + Math.round(_totalSalesValue);
     }
+
+    /**
+     * Orders the batches as BatchComparator now does, if read from a file
+     * written before payments were indexed, whose batches were ordered by
+     * truncated prices. Called once the whole file is read, since the
+     * batches are ordered by their partners' IDs, and before
+     * indexLegacyPayments.
+     */
+    void indexLegacyBatches() {
+        if(_payments != null) {
+            return;
+        }
+
+        Set<Batch> batches = _batches;
+        _batches = new TreeSet<Batch>(new BatchComparator());
+        _batches.addAll(batches);
+    }
+
+    /**
+     * Indexes the paid sales, if read from a file written before they were.
+     * Called once the whole file is read, since the sales may not be yet
+     * while this partner is.
+     */
+    void indexLegacyPayments() {
+        if(_payments != null) {
+            return;
+        }
+
+        _payments = new TreeMap<Integer, Transaction>();
+        for(Sale sale : _sales) {
+            if(sale.isPaid()) {
+                _payments.put(sale.getId(), sale);
+            }
+        }
+        _dirty = true;
+    }
 }
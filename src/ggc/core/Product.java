@@ -1,15 +1,20 @@
 package ggc.core;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.NavigableMap;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
@@ -17,15 +22,12 @@ import java.util.TreeSet;
  * have an unique ID, a total stock, its price, and a set of batches.
  */
 public abstract class Product implements ObservableProduct {
-   
-    /** Product's max price. */
-    private double _maxPrice;
 
+    /** Serial number for serialization. */
+    private static final long serialVersionUID = -1376314555996509844L;
+   
     private double _allTimeHigh;
 
-    /** Product's max price. */
-    private double _minPrice;
-
     /** Product's total stock. */
     private int _totalStock;
 
@@ -35,9 +37,28 @@ public abstract class Product implements ObservableProduct {
     /** Product's list of batches. */
     private Set<Batch> _batches = new TreeSet<Batch>(new BatchComparator());
 
-    /** Array containing observers who want to be notified about this product's events. */
+    /** Product's batches indexed by price, cheapest first. Also yields the min and max prices. */
+    private NavigableMap<Double, Set<Batch>> _batchesByPrice = new TreeMap<Double, Set<Batch>>();
+
+    /** Every observer that may be notified about this product's events, shared by all products. */
     private List<ProductObserver> _observers = new ArrayList<ProductObserver>();
 
+    /**
+     * Observers who do not want to be notified about this product's events.
+     * Kept by identity: a hashed set would rehash partners while they are
+     * still being deserialized, before their IDs are read.
+     */
+    private Set<ProductObserver> _optedOut = Collections.newSetFromMap(new IdentityHashMap<ProductObserver, Boolean>());
+
+    /** Queue where events are posted; null means they are delivered right away. */
+    private NotificationDispatcher _dispatcher;
+
+    /** Whether the state written to snapshots changed since the last checkpoint. */
+    private boolean _dirty = true;
+
+    /** Held while a transaction changes this product's stock and batches. */
+    private transient ReentrantLock _lock = new ReentrantLock();
+
     /**
      * Create a product.
      * 
@@ -45,9 +66,7 @@ public abstract class Product implements ObservableProduct {
      *          product ID.
      */
     Product(String id) {
-        _maxPrice = Double.MIN_VALUE;;
         _allTimeHigh = 0;
-        _minPrice = Double.MAX_VALUE;
         _totalStock = 0;
         _id = id;
     }
@@ -59,12 +78,23 @@ public abstract class Product implements ObservableProduct {
         return _id;
     }
 
+    void lock() {
+        _lock.lock();
+    }
+
+    void unlock() {
+        _lock.unlock();
+    }
+
     /**
      * @return the product's price.
      */
     double getPrice() {
-        calculateMaxPrice();
-        return _maxPrice;
+        if(_batchesByPrice.isEmpty()) {
+            return Double.MIN_VALUE;
+        }
+
+        return _batchesByPrice.lastKey();
     }
 
     /**
@@ -90,8 +120,11 @@ public abstract class Product implements ObservableProduct {
     }
 
     Double getMinPrice() {
-        calculateMinPrice();
-        return _minPrice;
+        if(_batchesByPrice.isEmpty()) {
+            return Double.MAX_VALUE;
+        }
+
+        return _batchesByPrice.firstKey();
     }
 
     abstract int getN();
@@ -107,19 +140,12 @@ public abstract class Product implements ObservableProduct {
      *          partner associated with the batch
      */
     void addBatch(double price, int quantity, Partner partner) {
-        if(price > getPrice()) {
-            _maxPrice = price;
-        } else if (price < getMinPrice()) {
-
-            if(_totalStock != 0) {
-                notifyObservers("BARGAIN", price);
-            }
-            _minPrice = price;
+        if(price <= getPrice() && price < getMinPrice() && _totalStock != 0) {
+            notifyObservers("BARGAIN", price);
         }
 
         Batch batch = new Batch(price, quantity, partner, this);
-        partner.addBatch(batch);
-        _batches.add(batch);
+        indexBatch(batch);
         addStock(quantity, batch);
 
         if(price > _allTimeHigh) {
@@ -127,44 +153,133 @@ public abstract class Product implements ObservableProduct {
         }
     }
 
+    /**
+     * Adds the batches of one delivery at once. Interested partners are
+     * notified once: NEW if the delivery restocks the product, or else
+     * BARGAIN if its cheapest batch undercuts every batch in stock.
+     *
+     * @param batches
+     *          the new batches of this product, in the order delivered.
+     */
+    void addBatches(List<Batch> batches) {
+        int quantity = 0;
+        double cheapest = Double.POSITIVE_INFINITY;
+        double highest = _allTimeHigh;
+        Batch restock = null;
+        for(Batch batch : batches) {
+            quantity += batch.getQuantity();
+            cheapest = Math.min(cheapest, batch.getPrice());
+            highest = Math.max(highest, batch.getPrice());
+            if(restock == null && batch.getQuantity() > 0) {
+                restock = batch;
+            }
+        }
+
+        if(_totalStock == 0) {
+            if(restock != null && _allTimeHigh != 0) {
+                notifyObservers("NEW", restock.getPrice());
+            }
+        } else if(cheapest <= getPrice() && cheapest < getMinPrice()) {
+            notifyObservers("BARGAIN", cheapest);
+        }
+
+        for(Batch batch : batches) {
+            indexBatch(batch);
+        }
+        _totalStock += quantity;
+        _allTimeHigh = highest;
+        _dirty = true;
+    }
+
     double getAllTimeHigh() {
         return _allTimeHigh;
     }
 
-    void calculateMinPrice() {
-        Double min = Double.MAX_VALUE;
+    /**
+     * Restores the stock and all-time high read from a snapshot.
+     */
+    void restoreStock(int totalStock, double allTimeHigh) {
+        _totalStock = totalStock;
+        _allTimeHigh = allTimeHigh;
+        _dirty = true;
+    }
 
-        for(Batch batch : _batches) {
-            if(batch.getPrice() < min) {
-                min = batch.getPrice();
-            }
+    /**
+     * Adds a batch read from a snapshot, without changing the stock or notifying anyone.
+     */
+    void restoreBatch(Batch batch) {
+        indexBatch(batch);
+    }
+
+    /**
+     * Drops every batch and opt-out, before restoring those read from a snapshot.
+     */
+    void clearRestoredState() {
+        for(Batch batch : new ArrayList<Batch>(_batches)) {
+            unindexBatch(batch);
         }
+        _optedOut.clear();
+        _dirty = true;
+    }
 
-        _minPrice = min;
+    boolean isDirty() {
+        return _dirty;
     }
 
-    void calculateMaxPrice() {
-        Double max = Double.MIN_VALUE;
+    void markClean() {
+        _dirty = false;
+    }
 
-        for(Batch batch : _batches) {
-            if(batch.getPrice() > max) {
-                max = batch.getPrice();
-            }
+    /**
+     * @return the cheapest batch of this product, or null if there is none.
+     */
+    Batch getCheapestBatch() {
+        Map.Entry<Double, Set<Batch>> entry = _batchesByPrice.firstEntry();
+        if(entry == null) {
+            return null;
         }
 
-        _maxPrice = max;
+        return entry.getValue().iterator().next();
     }
 
     void removeBatch(Batch batch) {
-        _batches.remove(batch);
-        batch.getPartner().removeBatch(batch);
+        unindexBatch(batch);
         removeStock(batch.getQuantity());
+    }
 
-        if (batch.getPrice() == _minPrice) {
-            calculateMinPrice();
-        } else if (batch.getPrice() == _maxPrice) {
-            calculateMaxPrice();
-        } 
+    /**
+     * Takes some units from a batch. The batch is re-inserted in the sorted
+     * sets, since its quantity is part of their ordering.
+     * 
+     * @param batch
+     *          the batch.
+     * @param quantity
+     *          the units taken.
+     */
+    void removeQuantity(Batch batch, int quantity) {
+        unindexBatch(batch);
+        batch.removeQuantity(quantity);
+        indexBatch(batch);
+    }
+
+    private void indexBatch(Batch batch) {
+        _dirty = true;
+        batch.getPartner().addBatch(batch);
+        if(_batches.add(batch)) {
+            _batchesByPrice.computeIfAbsent(batch.getPrice(), k -> new TreeSet<Batch>(new BatchComparator())).add(batch);
+        }
+    }
+
+    private void unindexBatch(Batch batch) {
+        _dirty = true;
+        _batches.remove(batch);
+
+        Set<Batch> samePrice = _batchesByPrice.get(batch.getPrice());
+        if(samePrice != null && samePrice.remove(batch) && samePrice.isEmpty()) {
+            _batchesByPrice.remove(batch.getPrice());
+        }
+
+        batch.getPartner().removeBatch(batch);
     }
 
     void addStock(int quantity, Batch batch) {
@@ -173,32 +288,129 @@ public abstract class Product implements ObservableProduct {
         }
 
         _totalStock += quantity;
+        _dirty = true;
     }
 
     void removeStock(int quantity) {
         _totalStock -= quantity;
+        _dirty = true;
+    }
+
+
+    /**
+     * @param observers
+     *          the shared list of observers, interested by default.
+     */
+    void setObservers(List<ProductObserver> observers) {
+        _observers = observers;
     }
 
+    /**
+     * @param dispatcher
+     *          the queue where this product's events are posted.
+     */
+    void setDispatcher(NotificationDispatcher dispatcher) {
+        _dispatcher = dispatcher;
+    }
+
+    /**
+     * @return the observers that do not want to be notified.
+     */
+    Set<ProductObserver> getOptedOut() {
+        return Collections.unmodifiableSet(_optedOut);
+    }
 
     boolean observerExists(ProductObserver observer) {
-        return _observers.contains(observer);
+        return !_optedOut.contains(observer);
     }
 
     @Override
     public void registerObserver(ProductObserver observer) {
-        _observers.add(observer);
+        _optedOut.remove(observer);
+        _dirty = true;
     }
 
     @Override
     public void removeObserver(ProductObserver observer) {
-        _observers.remove(observer);
+        _optedOut.add(observer);
+        _dirty = true;
     }
 
     @Override
     public void notifyObservers(String type, double price) {
+        if(_dispatcher != null) {
+            _dispatcher.post(type, this, price);
+        } else {
+            deliver(type, price);
+        }
+    }
+
+    /**
+     * Notifies every interested observer about an event.
+     * 
+     * @param type
+     *          event type, NEW or BARGAIN.
+     * @param price
+     *          price that triggered the event.
+     */
+    void deliver(String type, double price) {
         for (ProductObserver observer : _observers) {
-            observer.update(type, this, price);
+            if(!_optedOut.contains(observer)) {
+                observer.update(type, this, price);
+            }
+        }
+    }
+
+    /**
+     * Indexes the batches by price, if read from a file written before they
+     * were. Called once the whole file is read, since the batches are
+     * ordered by their partners' IDs.
+     */
+    void indexLegacyBatches() {
+        if(_batchesByPrice != null) {
+            return;
+        }
+
+        Set<Batch> batches = _batches;
+        _batches = new TreeSet<Batch>(new BatchComparator());
+        _batchesByPrice = new TreeMap<Double, Set<Batch>>();
+        for(Batch batch : batches) {
+            _batches.add(batch);
+            _batchesByPrice.computeIfAbsent(batch.getPrice(), k -> new TreeSet<Batch>(new BatchComparator())).add(batch);
+        }
+        _dirty = true;
+    }
+
+    /**
+     * Takes the shared list of observers in place of the interested ones a
+     * file written before products shared their observers holds, opting
+     * out those left out of it.
+     */
+    void shareObservers(List<ProductObserver> observers) {
+        List<ProductObserver> interested = _observers;
+        for(ProductObserver observer : observers) {
+            if(!containsIdentical(interested, observer)) {
+                _optedOut.add(observer);
+            }
+        }
+        _observers = observers;
+    }
+
+    private static boolean containsIdentical(List<ProductObserver> observers, ProductObserver observer) {
+        for(ProductObserver candidate : observers) {
+            if(candidate == observer) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        _lock = new ReentrantLock();
+
+        if(_optedOut == null) {
+            _optedOut = Collections.newSetFromMap(new IdentityHashMap<ProductObserver, Boolean>());
         }
     }
-    
 }
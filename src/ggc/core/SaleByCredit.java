@@ -1,6 +1,10 @@
 package ggc.core;
 
 public class SaleByCredit extends Sale {
+
+    /** Serial number for serialization. */
+    private static final long serialVersionUID = 5901218700854847590L;
+
     private Date _deadline;
     private double _amountPaid;
 
@@ -13,6 +17,10 @@ public class SaleByCredit extends Sale {
         return _amountPaid;
     }
 
+    void setAmountPaid(double amountPaid) {
+        _amountPaid = amountPaid;
+    }
+
     Date getDeadLine() {
         return _deadline;
     }
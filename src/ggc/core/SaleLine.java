@@ -0,0 +1,39 @@
+package ggc.core;
+
+/**
+ * One line of a basket sale: a quantity of a product sold by credit to a
+ * partner, to be paid within a deadline.
+ */
+public class SaleLine {
+    private String _partnerId;
+    private String _productId;
+    private int _deadline;
+    private int _amount;
+
+    public SaleLine(String partnerId, String productId, int deadline, int amount) {
+        _partnerId = partnerId;
+        _productId = productId;
+        _deadline = deadline;
+        _amount = amount;
+    }
+
+    String getPartnerId() {
+        return _partnerId;
+    }
+
+    String getProductId() {
+        return _productId;
+    }
+
+    int getDeadline() {
+        return _deadline;
+    }
+
+    int getAmount() {
+        return _amount;
+    }
+
+    public String toString() {
+        return _partnerId + "|" + _productId + "|" + _deadline + "|" + _amount;
+    }
+}
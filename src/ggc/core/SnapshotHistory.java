@@ -0,0 +1,89 @@
+package ggc.core;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Transactions of a lazily loaded snapshot that were not built yet. They
+ * are built from the snapshot's columns, which are views of the mapped
+ * file, when first needed: one at a time by ID, or all those of a partner
+ * when the partner's history is listed.
+ */
+class SnapshotHistory {
+
+    private BinarySnapshot _snapshot;
+    private Product[] _products;
+    private Partner[] _partners;
+
+    /** Snapshot index of each partner. */
+    private Map<Partner, Integer> _partnerIndex = new IdentityHashMap<Partner, Integer>();
+
+    /** Partners whose history was already taken. */
+    private boolean[] _taken;
+
+    /* Transaction indexes grouped by partner: those of partner p are at [_partnerStart[p], _partnerStart[p + 1]). Built on first use. */
+    private int[] _partnerStart;
+    private int[] _partnerTransactions;
+
+    SnapshotHistory(BinarySnapshot snapshot, Product[] products, Partner[] partners) {
+        _snapshot = snapshot;
+        _products = products;
+        _partners = partners;
+        _taken = new boolean[partners.length];
+        for(int i = 0; i < partners.length; i++) {
+            _partnerIndex.put(partners[i], i);
+        }
+    }
+
+    /**
+     * @param id
+     *          a transaction ID.
+     * @return a new transaction built from the snapshot, or null if the snapshot has no such transaction.
+     */
+    Transaction build(int id) {
+        int i = _snapshot.indexOfTransaction(id);
+        return i < 0 ? null : _snapshot.transaction(i, _products, _partners);
+    }
+
+    /**
+     * Takes the history of a partner: later calls for the same partner
+     * return nothing.
+     *
+     * @param partner
+     *          a partner.
+     * @return the IDs of the partner's transactions in the snapshot, in ID order.
+     */
+    int[] takeTransactionIds(Partner partner) {
+        Integer p = _partnerIndex.get(partner);
+        if(p == null || _taken[p]) {
+            return new int[0];
+        }
+        _taken[p] = true;
+
+        if(_partnerStart == null) {
+            groupByPartner();
+        }
+        int[] ids = new int[_partnerStart[p + 1] - _partnerStart[p]];
+        for(int i = 0; i < ids.length; i++) {
+            ids[i] = _snapshot.getTransactionId(_partnerTransactions[_partnerStart[p] + i]);
+        }
+        return ids;
+    }
+
+    private void groupByPartner() {
+        int count = _snapshot.getTransactionCount();
+        _partnerStart = new int[_partners.length + 1];
+        for(int i = 0; i < count; i++) {
+            _partnerStart[_snapshot.getTransactionPartner(i) + 1]++;
+        }
+        for(int p = 0; p < _partners.length; p++) {
+            _partnerStart[p + 1] += _partnerStart[p];
+        }
+
+        int[] next = _partnerStart.clone();
+        _partnerTransactions = new int[count];
+        for(int i = 0; i < count; i++) {
+            _partnerTransactions[next[_snapshot.getTransactionPartner(i)]++] = i;
+        }
+    }
+}
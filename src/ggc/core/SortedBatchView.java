@@ -0,0 +1,99 @@
+package ggc.core;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Read-only view over the batches of a collection of products, in
+ * BatchComparator order. Products are iterated in ID order and each one
+ * keeps its batches sorted, so the view is always up to date and never
+ * needs to be copied or sorted. The view may be restricted to batches
+ * cheaper than a given price.
+ *
+ * While transactions are registered concurrently the view must not be
+ * iterated; copy takes its batches safely instead.
+ */
+public class SortedBatchView extends AbstractCollection<Batch> {
+
+    /** Products whose batches are visible, ordered by ID. */
+    private Collection<Product> _products;
+
+    /** Only batches with a price strictly below this limit are visible. */
+    private double _priceLimit;
+
+    /**
+     * @param products
+     *          products ordered by ID (case insensitive).
+     */
+    SortedBatchView(Collection<Product> products) {
+        this(products, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * @param products
+     *          products ordered by ID (case insensitive).
+     * @param priceLimit
+     *          exclusive upper bound for the batches' prices.
+     */
+    SortedBatchView(Collection<Product> products, double priceLimit) {
+        _products = products;
+        _priceLimit = priceLimit;
+    }
+
+    @Override
+    public Iterator<Batch> iterator() {
+        return _products.stream().flatMap(this::visibleBatches).iterator();
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+
+        for(Product product : _products) {
+            if(product.getPrice() < _priceLimit) {
+                size += product.getBatches().size();
+            } else if(product.getMinPrice() < _priceLimit) {
+                size += (int)visibleBatches(product).count();
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * @return the visible batches, in order, each product's taken under its lock.
+     */
+    List<Batch> copy() {
+        List<Batch> batches = new ArrayList<Batch>();
+
+        for(Product product : _products) {
+            product.lock();
+            try {
+                visibleBatches(product).forEach(batches::add);
+            } finally {
+                product.unlock();
+            }
+        }
+
+        return batches;
+    }
+
+    /**
+     * Products are skipped from their price range alone: none of their
+     * batches is visited unless some batch is under the limit.
+     */
+    private Stream<Batch> visibleBatches(Product product) {
+        if(product.getPrice() < _priceLimit) {
+            return product.getBatches().stream();
+        }
+        if(product.getMinPrice() >= _priceLimit) {
+            return Stream.empty();
+        }
+
+        return product.getBatches().stream().filter(batch -> batch.getPrice() < _priceLimit);
+    }
+}
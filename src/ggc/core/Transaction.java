@@ -57,6 +57,10 @@ public abstract class Transaction implements Serializable {
         return _warehouseDate;
     }
 
+    /**
+     * @param date
+     *          the warehouse clock, read whenever the current date is needed.
+     */
     void setCurrentDate(Date date) {
         _warehouseDate = date;
     }
@@ -6,11 +6,17 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.DoubleAdder;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 
 import ggc.app.exception.UnavailableProductException;
 import ggc.core.exception.BadEntryException;
@@ -24,6 +30,13 @@ import ggc.core.exception.UnknownTransactionException;
 
 /**
  * Class Warehouse implements a warehouse.
+ *
+ * Transactions may be registered and paid from several threads at once,
+ * as long as nothing else changes the warehouse meanwhile (see
+ * WarehouseManager). Each one locks only the products it changes: the
+ * product sold or acquired, or an aggregate and its components for a
+ * breakdown, always locked in product ID order. Partners, the transaction
+ * maps, the ID counter and the balance are safe to share on their own.
  */
 public class Warehouse implements Serializable {
 
@@ -31,33 +44,332 @@ public class Warehouse implements Serializable {
     private static final long serialVersionUID = 202109192006L;
 
 
+    /** Warehouse clock. Transactions keep a reference to it instead of a copy. */
     private Date _date;
+
+    /** Next transaction ID and available balance as serialized; _transactionIds and _balance hold them while running. */
     private int _nextTransactionId;
     private double _availableBalance;
+
+    private transient AtomicInteger _transactionIds = new AtomicInteger();
+    private transient DoubleAdder _balance = new DoubleAdder();
+
     private Map<String, Product> _products = new TreeMap<String, Product>(String.CASE_INSENSITIVE_ORDER);
     private Map<String, Partner> _partners = new TreeMap<String, Partner>(String.CASE_INSENSITIVE_ORDER);
-    private Map<Integer, Transaction> _transactions = new TreeMap<Integer, Transaction>();
+    private NavigableMap<Integer, Transaction> _transactions = new ConcurrentSkipListMap<Integer, Transaction>();
+
+    /** Every partner, in registration order. Shared with the products, which notify them unless they opted out. */
+    private List<ProductObserver> _observers = new ArrayList<ProductObserver>();
+
+    /** Product events waiting to be delivered to the partners. */
+    private NotificationDispatcher _dispatcher = new NotificationDispatcher();
+
+    /** Sales by credit that are still waiting to be paid. */
+    private Map<Integer, SaleByCredit> _openReceivables = new ConcurrentSkipListMap<Integer, SaleByCredit>();
+
+    /** First transaction ID not covered by the last checkpoint. */
+    private int _checkpointTransactionId;
+
+    /** Transactions older than the last checkpoint that were paid since. */
+    private List<Transaction> _paidSinceCheckpoint = new ArrayList<Transaction>();
+
+    /** Transactions of the snapshot this warehouse was lazily loaded from that were not built yet, if any. */
+    private transient SnapshotHistory _history;
 
     Warehouse() {
         _date = new Date();
-        _nextTransactionId = 0;
-        _availableBalance = 0;
     }
 
     Date getDate() {
         return _date;
     }
 
-    void advanceDate(int offset) throws InvalidDaysException {
-        if (offset <= 0) {
-            throw new InvalidDaysException(offset);
+    int getNextTransactionId() {
+        return _transactionIds.get();
+    }
+
+    /**
+     * @return every partner, in registration order.
+     */
+    List<ProductObserver> getObservers() {
+        return Collections.unmodifiableList(_observers);
+    }
+
+    /**
+     * Restores the warehouse counters from a snapshot. The clock is moved,
+     * not replaced, since restored transactions refer to it.
+     */
+    void restoreCounters(int date, int nextTransactionId, double availableBalance) {
+        _date.add(date - _date.getDays());
+        _transactionIds.set(nextTransactionId);
+        _balance.reset();
+        _balance.add(availableBalance);
+    }
+
+    /**
+     * Adds a partner read from a snapshot. Partners must be restored in registration order.
+     */
+    void restorePartner(Partner partner) {
+        _observers.add(partner);
+        _partners.put(partner.getId(), partner);
+    }
+
+    /**
+     * Adds a product read from a snapshot.
+     */
+    void restoreProduct(Product product) {
+        makeProductOberversInterested(product);
+        _products.put(product.getId(), product);
+    }
+
+    /**
+     * Adds a transaction read from a snapshot. Transactions must be restored by ID order.
+     */
+    void restoreTransaction(Transaction transaction) {
+        transaction.setCurrentDate(_date);
+        _transactions.put(transaction.getId(), transaction);
+        transaction.getPartner().restoreTransaction(transaction);
+
+        if(transaction instanceof SaleByCredit && !transaction.isPaid()) {
+            _openReceivables.put(transaction.getId(), (SaleByCredit)transaction);
         }
+    }
 
-        _date.add(offset);
+    /**
+     * Records the payment of a restored transaction, read from a later snapshot.
+     */
+    void restorePayment(Transaction transaction, Date paymentDate, double amountPaid) {
+        transaction.setPaid(true);
+        transaction.setPaymentDate(paymentDate);
+        if(transaction instanceof SaleByCredit) {
+            ((SaleByCredit)transaction).setAmountPaid(amountPaid);
+        }
+        transaction.getPartner().addPayment(transaction);
+        _openReceivables.remove(transaction.getId());
+    }
+
+    /** @return the partner with the given ID, or null if there is none. */
+    Partner findPartner(String id) {
+        return _partners.get(id);
+    }
+
+    /** @return the product with the given ID, or null if there is none. */
+    Product findProduct(String id) {
+        return _products.get(id);
+    }
+
+    /** @return the transaction with the given ID, or null if there is none. */
+    Transaction findTransaction(int id) {
+        Transaction transaction = _transactions.get(id);
+        if(transaction == null && _history != null) {
+            transaction = _history.build(id);
+            if(transaction != null) {
+                transaction.setCurrentDate(_date);
+                _transactions.put(id, transaction);
+            }
+        }
+        return transaction;
+    }
+
+    /**
+     * Leaves the transactions of a lazily loaded snapshot to be built when needed.
+     */
+    void setHistory(SnapshotHistory history) {
+        _history = history;
+    }
 
+    /** @return whether transactions of a lazily loaded snapshot are still to be built. */
+    boolean hasPendingHistory() {
+        return _history != null;
+    }
+
+    /**
+     * Adds an open sale by credit of a lazily loaded snapshot.
+     */
+    void restoreOpenReceivable(SaleByCredit sale) {
+        _openReceivables.put(sale.getId(), sale);
+    }
+
+    /**
+     * @return the partner, with its snapshot history filed.
+     * @throws UnknownPartnerException
+     */
+    private Partner partnerWithHistory(String id) throws UnknownPartnerException {
+        Partner partner = getPartnerWithId(id);
+        loadHistory(partner);
+        return partner;
+    }
+
+    /**
+     * Files the partner's transactions from a lazily loaded snapshot, if
+     * this was not done yet. They are older than any other transaction of
+     * the partner, so they go first.
+     */
+    private void loadHistory(Partner partner) {
+        if(_history == null) {
+            return;
+        }
+
+        List<Transaction> history = new ArrayList<Transaction>();
+        for(int id : _history.takeTransactionIds(partner)) {
+            history.add(findTransaction(id));
+        }
+        if(!history.isEmpty()) {
+            partner.restoreHistory(history);
+        }
+    }
+
+    /**
+     * Builds and files every transaction of a lazily loaded snapshot, so
+     * that the warehouse no longer depends on the snapshot file.
+     */
+    void materializeHistory() {
+        if(_history == null) {
+            return;
+        }
+
+        for(ProductObserver observer : _observers) {
+            loadHistory((Partner)observer);
+        }
+        _history = null;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        materializeHistory();
+        _nextTransactionId = _transactionIds.get();
+        _availableBalance = _balance.sum();
+        // the delivery thread must not update partners while they are written
+        _dispatcher.holdDeliveries();
+        try {
+            out.defaultWriteObject();
+        } finally {
+            _dispatcher.releaseDeliveries();
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        _transactionIds = new AtomicInteger(_nextTransactionId);
+        _balance = new DoubleAdder();
+        _balance.add(_availableBalance);
+        // files written before transactions could be registered concurrently hold tree maps
+        _transactions = new ConcurrentSkipListMap<Integer, Transaction>(_transactions);
+        // files written before transactions shared the warehouse clock hold copies of it
         for(Transaction transaction : _transactions.values()) {
             transaction.setCurrentDate(_date);
         }
+
+        // files written before receivables were indexed
+        if(_openReceivables == null) {
+            _openReceivables = new TreeMap<Integer, SaleByCredit>();
+            for(Transaction transaction : _transactions.values()) {
+                if(transaction instanceof SaleByCredit && !transaction.isPaid()) {
+                    _openReceivables.put(transaction.getId(), (SaleByCredit)transaction);
+                }
+            }
+        }
+        _openReceivables = new ConcurrentSkipListMap<Integer, SaleByCredit>(_openReceivables);
+
+        if(_paidSinceCheckpoint == null) {
+            _paidSinceCheckpoint = new ArrayList<Transaction>();
+        }
+
+        for(Partner partner : _partners.values()) {
+            partner.indexLegacyBatches();
+            partner.indexLegacyPayments();
+        }
+        for(Product product : _products.values()) {
+            product.indexLegacyBatches();
+        }
+
+        // files written before products shared their observers, in partner ID order
+        if(_observers == null) {
+            _observers = new ArrayList<ProductObserver>(_partners.values());
+            _dispatcher = new NotificationDispatcher();
+            for(Product product : _products.values()) {
+                product.shareObservers(_observers);
+                makeProductOberversInterested(product);
+            }
+        }
+    }
+
+    /**
+     * Locks products in ID order, the order every caller must follow.
+     *
+     * @return the products locked, to be passed to unlock.
+     */
+    private static List<Product> lock(List<Product> products) {
+        List<Product> ordered = new ArrayList<Product>(products);
+        ordered.sort(Comparator.comparing(Product::getId, String.CASE_INSENSITIVE_ORDER));
+        for(Product product : ordered) {
+            product.lock();
+        }
+        return ordered;
+    }
+
+    private static void unlock(List<Product> products) {
+        for(int i = products.size() - 1; i >= 0; i--) {
+            products.get(i).unlock();
+        }
+    }
+
+    /**
+     * Marks the current state as saved: the next delta snapshot holds what
+     * changes after this.
+     */
+    void markCheckpoint() {
+        for(ProductObserver observer : _observers) {
+            ((Partner)observer).markClean();
+        }
+        for(Product product : _products.values()) {
+            product.markClean();
+        }
+        _checkpointTransactionId = _transactionIds.get();
+        _paidSinceCheckpoint.clear();
+    }
+
+    /**
+     * @return partners changed since the last checkpoint, in registration order.
+     */
+    List<Partner> getDirtyPartners() {
+        List<Partner> dirty = new ArrayList<Partner>();
+        for(ProductObserver observer : _observers) {
+            if(((Partner)observer).isDirty()) {
+                dirty.add((Partner)observer);
+            }
+        }
+        return dirty;
+    }
+
+    /**
+     * @return products changed since the last checkpoint, in ID order.
+     */
+    List<Product> getDirtyProducts() {
+        List<Product> dirty = new ArrayList<Product>();
+        for(Product product : _products.values()) {
+            if(product.isDirty()) {
+                dirty.add(product);
+            }
+        }
+        return dirty;
+    }
+
+    /**
+     * @return transactions registered or paid since the last checkpoint, in ID order.
+     */
+    List<Transaction> getTransactionsSinceCheckpoint() {
+        List<Transaction> changed = new ArrayList<Transaction>(_paidSinceCheckpoint);
+        changed.sort(Comparator.comparingInt(Transaction::getId));
+        changed.addAll(_transactions.tailMap(_checkpointTransactionId, true).values());
+        return changed;
+    }
+
+    void advanceDate(int offset) throws InvalidDaysException {
+        if (offset <= 0) {
+            throw new InvalidDaysException(offset);
+        }
+
+        _date.add(offset);
     }
 
     Collection<Product> getProducts() {
@@ -69,53 +381,73 @@ public class Warehouse implements Serializable {
     }
 
     Collection<Transaction> getTransactions() {
+        materializeHistory();
         return Collections.unmodifiableCollection(_transactions.values());
     }
 
-    List<Batch> getAllBatchesSorted() {
-        ArrayList<Batch> batches = new ArrayList<Batch>();
-
-        for(Product product : getProducts()) {
-          for(Batch batch : product.getBatches()) {
-            batches.add(batch);
-          }
-        }
-    
-        batches.sort(new BatchComparator());
-    
-        return Collections.unmodifiableList(batches);
+    SortedBatchView getAllBatchesSorted() {
+        return new SortedBatchView(getProducts());
     }
 
 
     /**
      * @param txtfile filename to be loaded.
+     * @param workers threads converting lines in parallel; 1 for none.
      * @throws IOException
      * @throws BadEntryException
      * @throws UnknownPartnerException
      * @throws UnknownProductException
      * @throws NumberFormatException
      */
-    void importFile(String txtfile) throws IOException, BadEntryException, DuplicatePartnerException, UnknownPartnerException, NumberFormatException, UnknownProductException {
-        Parser parser = new Parser(this);
+    void importFile(String txtfile, int workers) throws IOException, BadEntryException, DuplicatePartnerException, UnknownPartnerException, NumberFormatException, UnknownProductException {
+        importFile(txtfile, workers, null);
+    }
+
+    /**
+     * @param applied list receiving the text of every line applied, including one that failed, or null.
+     */
+    void importFile(String txtfile, int workers, List<String> applied) throws IOException, BadEntryException, DuplicatePartnerException, UnknownPartnerException, NumberFormatException, UnknownProductException {
+        Parser parser = new Parser(this, workers, applied);
         parser.parseFile(txtfile);
     }
 
+    /**
+     * Applies the lines of an earlier import again.
+     *
+     * @param applied list receiving the text of every line applied, including one that failed, or null.
+     */
+    void importLines(List<String> lines, List<String> applied) throws IOException, BadEntryException, DuplicatePartnerException, UnknownPartnerException, NumberFormatException, UnknownProductException {
+        Parser parser = new Parser(this, 1, applied);
+        parser.parseLines(lines);
+    }
+
     void registerPartner(String id, String name, String address) throws DuplicatePartnerException {
         if(_partners.containsKey(id)) {
             throw new DuplicatePartnerException(id);
         }
         Partner partner =  new Partner(id, name, address);
-
-        for(Product product : _products.values()) {
-            product.registerObserver(partner);
-        }
+        _dispatcher.flush();
+        _observers.add(partner);
         _partners.put(id, partner);
     }
 
     void makeProductOberversInterested(Product product) {
-        for (ProductObserver observer : _partners.values()) {
-            product.registerObserver(observer);
-        }
+        product.setObservers(_observers);
+        product.setDispatcher(_dispatcher);
+    }
+
+    /**
+     * Delivers pending product events, so that partners' notifications are up to date.
+     */
+    void flushNotifications() {
+        _dispatcher.flush();
+    }
+
+    /**
+     * @param muted true to drop the notifications of product events from now on.
+     */
+    void setNotificationsMuted(boolean muted) {
+        _dispatcher.setMuted(muted);
     }
 
     void registerSimpleProduct(String productId) {
@@ -153,17 +485,8 @@ public class Warehouse implements Serializable {
         return getPartnerWithId(id).getBatches();
     }
 
-    List<Batch> getBatchesUnderGivenPrice(int price) {
-        List<Batch> lookup = new ArrayList<Batch>();
-        for(Product product : getProducts()) {
-          for(Batch batch : product.getBatches()) {
-            if (price > batch.getPrice())
-                lookup.add(batch);
-          }
-        }
-        lookup.sort(new BatchComparator());
-        return Collections.unmodifiableList(lookup);
-
+    SortedBatchView getBatchesUnderGivenPrice(int price) {
+        return new SortedBatchView(getProducts(), price);
     }
 
     Partner getPartnerWithId(String id) throws UnknownPartnerException {
@@ -183,22 +506,24 @@ public class Warehouse implements Serializable {
     }
 
     Collection<Acquisition> getAcquisitionsFromPartner(String id) throws UnknownPartnerException {
-        return getPartnerWithId(id).getAcquisitions();
+        return partnerWithHistory(id).getAcquisitions();
     }
 
     Collection<Sale> getSalesFromPartner(String id) throws UnknownPartnerException {
-        return getPartnerWithId(id).getSales();
+        return partnerWithHistory(id).getSales();
     }
 
     Transaction getTransactionWithId(int id) throws UnknownTransactionException {
-        if(!_transactions.containsKey(id)) {
+        Transaction transaction = findTransaction(id);
+        if(transaction == null) {
             throw new UnknownTransactionException(id);
         }
         
-        return _transactions.get(id);
+        return transaction;
     }
 
     void toggleNotifications(Product product, ProductObserver observer) {
+        _dispatcher.flush();
         if(product.observerExists(observer)) {
             product.removeObserver(observer);
         } else {
@@ -207,24 +532,38 @@ public class Warehouse implements Serializable {
       }
 
 
-    List<Transaction> getPaymentsPartner(String id) throws UnknownPartnerException {
-        ArrayList<Transaction> payments = new ArrayList<>();
-        Partner partner = getPartnerWithId(id);
-        
-        for(Transaction transaction : getTransactions()) {
-            if(transaction.isPaid() && transaction.getPartner().equals(partner))
-                payments.add(transaction);
-        }
-        
-        return Collections.unmodifiableList(payments);
+    Collection<Transaction> getPaymentsPartner(String id) throws UnknownPartnerException {
+        return partnerWithHistory(id).getPayments();
     }
 
-    void registerBreakdownTransaction(Partner partner, Product product, int amount) throws UnavailableProductQuantityException {
+    List<Transaction> getPaymentsPartner(String id, int fromId, int limit) throws UnknownPartnerException {
+        return partnerWithHistory(id).getPayments(fromId, limit);
+    }
 
+    void registerBreakdownTransaction(Partner partner, Product product, int amount) throws UnavailableProductQuantityException {
+        List<Product> products = new ArrayList<Product>();
+        products.add(product);
         if(product.getRecipe() != null) {
             for(Component component : product.getRecipe().getComponents()) {
-                if(component.getProduct().getTotalStock() < amount) {
-                    throw new UnavailableProductQuantityException(component.getProduct().getId(), amount, component.getProduct().getTotalStock());
+                products.add(component.getProduct());
+            }
+        }
+
+        List<Product> locked = lock(products);
+        try {
+            breakDown(partner, product, amount);
+        } finally {
+            unlock(locked);
+        }
+    }
+
+    private void breakDown(Partner partner, Product product, int amount) throws UnavailableProductQuantityException {
+        AggregateProduct aggregate = product.getRecipe() != null ? (AggregateProduct)product : null;
+        if(aggregate != null) {
+            for(int i = 0; i < aggregate.getComponentCount(); i++) {
+                Product component = aggregate.getComponentProduct(i);
+                if(component.getTotalStock() < amount) {
+                    throw new UnavailableProductQuantityException(component.getId(), amount, component.getTotalStock());
                 }
             }
         }
@@ -233,111 +572,190 @@ public class Warehouse implements Serializable {
             throw new UnavailableProductQuantityException(product.getId(), amount, product.getTotalStock());
         }
         
-        if(product.getRecipe() == null) {
+        if(aggregate == null) {
             return;
         }
 
         int copyAmount = amount;
-        List<Batch> batches = new LinkedList<Batch>(product.getBatches());
-        batches.sort(new Comparator<Batch>() {
-            public int compare(Batch b1, Batch b2) {
-                return (int)(b1.getPrice() - b2.getPrice());
-            }
-        });
 
-        double price;
         double acquisitions = 0;
         double sales = 0;
         List<Batch> newBatches = new ArrayList<Batch>();
-        while(amount > 0) {
-            Batch batch = batches.get(0);
-            Recipe recipe = batch.getProduct().getRecipe();
-            if(batch.getQuantity() > amount) { 
-                for(Component component : recipe.getComponents()) {
-                    if(component.getProduct().getBatches().size() == 0) {
-                        price = component.getProduct().getAllTimeHigh();
-                    } else {
-                        price = component.getProduct().getMinPrice();
-                    }
-
-                    acquisitions += price * amount * component.getQuantity();
-                    component.getProduct().addBatch(price, amount * component.getQuantity(), partner);
-                    newBatches.add(new Batch(price * amount * component.getQuantity(), component.getQuantity() * amount, component.getProduct()));
-                }
-                sales += batch.getPrice() * amount;
-                batch.removeQuantity(amount);
-                amount = 0;
+        Batch batch;
+        while(amount > 0 && (batch = product.getCheapestBatch()) != null) {
+            int units = Math.min(batch.getQuantity(), amount);
+            for(int i = 0; i < aggregate.getComponentCount(); i++) {
+                Product component = aggregate.getComponentProduct(i);
+                int quantity = aggregate.getComponentQuantity(i);
+                double price = aggregate.getComponentPrice(i);
+
+                acquisitions += price * units * quantity;
+                component.addBatch(price, units * quantity, partner);
+                newBatches.add(new Batch(price * units * quantity, quantity * units, component));
+            }
+            sales += batch.getPrice() * units;
+            if(batch.getQuantity() > amount) {
+                product.removeQuantity(batch, amount);
             } else {
-                for(Component component : recipe.getComponents()) {
-                    if(component.getProduct().getBatches().size() == 0) {
-                        price = component.getProduct().getAllTimeHigh();
-                    } else {
-                        price = component.getProduct().getMinPrice();
-                    }
-                    acquisitions += price * batch.getQuantity() * component.getQuantity();
-                    component.getProduct().addBatch(price, batch.getQuantity() * component.getQuantity(), partner);
-                    newBatches.add(new Batch(price * batch.getQuantity() * component.getQuantity(), component.getQuantity() * batch.getQuantity(), component.getProduct()));
-                }
-                batches.remove(batch);
                 product.removeBatch(batch);
-                sales += batch.getPrice() * batch.getQuantity();
-                amount -= batch.getQuantity();
             }
+            amount -= units;
         }
 
         double baseValue = sales - acquisitions;
-        BreakdownSale transaction = new BreakdownSale(_nextTransactionId, product, copyAmount, partner);
+        int id = _transactionIds.getAndIncrement();
+        BreakdownSale transaction = new BreakdownSale(id, product, copyAmount, partner);
         transaction.setBatches(newBatches);
         transaction.setBaseValue(baseValue);
-        transaction.setCurrentDate(new Date(_date.getDays()));
+        transaction.setCurrentDate(_date);
         transaction.setPaymentDate(new Date(_date.getDays()));
-        _transactions.put(_nextTransactionId, transaction);
+        _transactions.put(id, transaction);
         partner.addSale(transaction);
-        _nextTransactionId++;
-        _availableBalance += transaction.getAmountPaid();
+        partner.addPayment(transaction);
+        _balance.add(transaction.getAmountPaid());
     }
 
     void registerAcquisitionTransaction(Partner partner, Product product, double price, int quantity) {
-        Acquisition acquisition = new Acquisition(_nextTransactionId, product, quantity, partner, price);
-        acquisition.setCurrentDate(new Date(_date.getDays()));
-        acquisition.setPaymentDate(new Date(_date.getDays()));
-        _transactions.put(_nextTransactionId, acquisition);
+        product.lock();
+        try {
+            int id = _transactionIds.getAndIncrement();
+            Acquisition acquisition = new Acquisition(id, product, quantity, partner, price);
+            acquisition.setCurrentDate(_date);
+            acquisition.setPaymentDate(new Date(_date.getDays()));
+            _transactions.put(id, acquisition);
+
+            partner.addAcquisition(acquisition);
+            product.addBatch(price, quantity, partner);
+
+            _balance.add(-price * quantity);
+        } finally {
+            product.unlock();
+        }
+    }
 
-        partner.addAcquisition(acquisition);
-        product.addBatch(price, quantity, partner);
+    /**
+     * Registers the acquisitions of a delivery, with contiguous IDs in the
+     * order given. The batches are added per product, each product locked
+     * and notified once.
+     *
+     * @param partners
+     *          partner of each acquisition.
+     * @param products
+     *          product of each acquisition.
+     * @param prices
+     *          unit price of each acquisition.
+     * @param quantities
+     *          quantity of each acquisition.
+     */
+    void registerAcquisitionTransactions(Partner[] partners, Product[] products, double[] prices, int[] quantities) {
+        Map<Product, List<Batch>> deliveries = new LinkedHashMap<Product, List<Batch>>();
+        for(int i = 0; i < products.length; i++) {
+            deliveries.computeIfAbsent(products[i], p -> new ArrayList<Batch>())
+                .add(new Batch(prices[i], quantities[i], partners[i], products[i]));
+        }
+
+        List<Product> locked = lock(new ArrayList<Product>(deliveries.keySet()));
+        try {
+            int first = _transactionIds.getAndAdd(products.length);
+            double total = 0;
+            for(int i = 0; i < products.length; i++) {
+                Acquisition acquisition = new Acquisition(first + i, products[i], quantities[i], partners[i], prices[i]);
+                acquisition.setCurrentDate(_date);
+                acquisition.setPaymentDate(new Date(_date.getDays()));
+                _transactions.put(first + i, acquisition);
+                partners[i].addAcquisition(acquisition);
+                total += prices[i] * quantities[i];
+            }
+
+            for(Map.Entry<Product, List<Batch>> delivery : deliveries.entrySet()) {
+                delivery.getKey().addBatches(delivery.getValue());
+            }
 
-        _nextTransactionId++;
-        _availableBalance -= price * quantity;
+            _balance.add(-total);
+        } finally {
+            unlock(locked);
+        }
     }
 
     void pay(Transaction transaction) {
-        if (transaction.isPaid()) {
-            return;
+        // payments change the partner's points and status, so each partner's are made one at a time
+        synchronized(transaction.getPartner()) {
+            if (transaction.isPaid()) {
+                return;
+            }
+            transaction.pay();
         }
 
-        transaction.pay();
-        _availableBalance += transaction.getAmountPaid();
+        _balance.add(transaction.getAmountPaid());
+        _openReceivables.remove(transaction.getId());
+        if(transaction.getId() < _checkpointTransactionId) {
+            synchronized(_paidSinceCheckpoint) {
+                _paidSinceCheckpoint.add(transaction);
+            }
+        }
     }
 
     public void registerSaleTransaction(Partner partner, Product product, int deadline, int amount) throws UnavailableProductQuantityException {
-        SaleByCredit sale = new SaleByCredit(_nextTransactionId, product, amount, partner, deadline);
+        product.lock();
+        try {
+            if(amount > product.getTotalStock()) {
+                throw new UnavailableProductQuantityException(product.getId(), amount, product.getTotalStock());
+            }
+            sell(_transactionIds.getAndIncrement(), partner, product, deadline, amount);
+        } finally {
+            product.unlock();
+        }
+    }
 
-        if(amount > product.getTotalStock()) {
-            throw new UnavailableProductQuantityException(product.getId(), amount, product.getTotalStock());
+    /**
+     * Registers the sales of a basket, with contiguous IDs in the order
+     * given, all or none: the stock of every product is checked against
+     * everything the basket takes from it before any batch is touched.
+     *
+     * @param partners
+     *          partner of each sale.
+     * @param products
+     *          product of each sale.
+     * @param deadlines
+     *          payment deadline of each sale.
+     * @param amounts
+     *          quantity of each sale.
+     * @throws UnavailableProductQuantityException
+     *          if some product has less stock than the basket takes from it.
+     */
+    void registerSaleTransactions(Partner[] partners, Product[] products, int[] deadlines, int[] amounts) throws UnavailableProductQuantityException {
+        Map<Product, Integer> demand = new LinkedHashMap<Product, Integer>();
+        for(int i = 0; i < products.length; i++) {
+            demand.merge(products[i], amounts[i], Integer::sum);
         }
 
-        List<Batch> batches = new ArrayList<Batch>(product.getBatches());
-        batches.sort(new Comparator<Batch>() {
-            public int compare(Batch b1, Batch b2) {
-                return (int)(b1.getPrice() - b2.getPrice());
+        List<Product> locked = lock(new ArrayList<Product>(demand.keySet()));
+        try {
+            for(Map.Entry<Product, Integer> entry : demand.entrySet()) {
+                Product product = entry.getKey();
+                if(entry.getValue() > product.getTotalStock()) {
+                    throw new UnavailableProductQuantityException(product.getId(), entry.getValue(), product.getTotalStock());
+                }
             }
-        });
 
+            int first = _transactionIds.getAndAdd(products.length);
+            for(int i = 0; i < products.length; i++) {
+                sell(first + i, partners[i], products[i], deadlines[i], amounts[i]);
+            }
+        } finally {
+            unlock(locked);
+        }
+    }
+
+    /** Takes a sale's units from the cheapest batches; the stock was checked by the caller. */
+    private void sell(int id, Partner partner, Product product, int deadline, int amount) {
+        SaleByCredit sale = new SaleByCredit(id, product, amount, partner, deadline);
         int price = 0;
-        for(Batch batch : batches) {
+        Batch batch;
+        while(amount > 0 && (batch = product.getCheapestBatch()) != null) {
             if(batch.getQuantity() > amount) {
                 price += amount * batch.getPrice();
-                batch.removeQuantity(amount);
+                product.removeQuantity(batch, amount);
                 break;
             } else {
                 price += batch.getQuantity() * batch.getPrice();
@@ -346,24 +764,22 @@ public class Warehouse implements Serializable {
             }
         }
 
-        sale.setCurrentDate(new Date(_date.getDays()));
+        sale.setCurrentDate(_date);
         sale.setBaseValue(price);
-        _transactions.put(_nextTransactionId, sale);
-        _nextTransactionId++;
+        _transactions.put(id, sale);
+        _openReceivables.put(id, sale);
         partner.addSale(sale);
     }
 
     double getAvailableBalance() {
-        return _availableBalance;
+        return _balance.sum();
     }
 
     double getAccountingBalance() {
-        double accountingBalance = _availableBalance;
+        double accountingBalance = _balance.sum();
 
-        for(Transaction transaction : _transactions.values()) {
-            if(!transaction.isPaid()) {
-                accountingBalance += transaction.getTotalValue();
-            }
+        for(SaleByCredit sale : _openReceivables.values()) {
+            accountingBalance += sale.getTotalValue();
         }
 
         return accountingBalance;
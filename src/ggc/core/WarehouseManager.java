@@ -3,13 +3,25 @@ package ggc.core;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import ggc.app.exception.UnavailableProductException;
 import ggc.core.exception.BadEntryException;
@@ -23,15 +35,291 @@ import ggc.core.exception.UnknownProductException;
 import ggc.core.exception.UnknownTransactionException;
 import ggc.core.exception.MissingFileAssociationException;
 
-/** Façade for access. */
+/**
+ * Façade for access.
+ *
+ * The manager may be shared between threads: queries hold a read lock and
+ * run in parallel, while changes, saves and loads hold the write lock and
+ * run one at a time. Queries returning collections return live read-only
+ * views, unless concurrent mode is on; then they return copies, which stay
+ * safe to iterate while other threads change the warehouse. Settings are
+ * meant to be chosen before the manager is shared.
+ *
+ * In concurrent mode, sales, acquisitions, breakdowns and payments hold
+ * only the read lock too, and the warehouse locks just the products they
+ * change, so transactions on different products run in parallel. They
+ * still take the write lock while a journal is open, which must record
+ * them in ID order.
+ */
 public class WarehouseManager {
 
+  /** Guards the warehouse and the manager's own state. */
+  private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+
+  /** Whether queries return copies instead of live views. */
+  private boolean _concurrent = false;
+
   /** Name of file storing current warehouse. */
   private String _filename = "";
 
   /** The wharehouse itself. */
   private Warehouse _warehouse = new Warehouse();
 
+  /** Whether saves use the binary snapshot format instead of Java serialization. */
+  private boolean _binarySnapshots = false;
+
+  /**
+   * @param binarySnapshots true to save in the binary snapshot format, false
+   *        to use Java serialization. Loading accepts both formats.
+   */
+  public void setBinarySnapshots(boolean binarySnapshots) {
+    _binarySnapshots = binarySnapshots;
+  }
+
+  /** Journal of the operations applied since the last save or load, if journaling. */
+  private Journal _journal;
+
+  /** Records between forced journal writes; negative when not journaling. */
+  private int _journalSyncInterval = -1;
+
+  /**
+   * Enables the operation journal. Once the warehouse is associated with a
+   * file, every successful change is appended to "<file>.journal" and
+   * replayed by the next load, so changes made since the last save survive
+   * a crash.
+   *
+   * @param syncInterval number of operations between forced writes to the
+   *        storage device (1 forces every operation, 0 leaves it to the
+   *        operating system); negative disables the journal.
+   */
+  public void setJournalSyncInterval(int syncInterval) {
+    _journalSyncInterval = syncInterval;
+  }
+
+  /**
+   * Forces and closes the operation journal, if any.
+   *
+   * @throws IOException
+   */
+  public void closeJournal() throws IOException {
+    _lock.writeLock().lock();
+    try {
+      if (_journal != null) {
+        _journal.close();
+        _journal = null;
+      }
+    } finally {
+      _lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Starts a new journal for the snapshot just written to the current file.
+   *
+   * @throws IOException
+   */
+  private void resetJournal() throws IOException {
+    closeJournal();
+    if (_journalSyncInterval >= 0) {
+      _journal = Journal.create(Journal.journalFor(_filename), Path.of(_filename), _journalSyncInterval);
+    }
+  }
+
+  /**
+   * Replays the journal of the snapshot just loaded and keeps appending to it.
+   *
+   * @throws UnavailableFileException if the journal cannot be replayed.
+   */
+  private void recoverJournal(String filename) throws UnavailableFileException {
+    if (_journalSyncInterval < 0) {
+      return;
+    }
+    try {
+      _journal = Journal.recover(filename, this, _journalSyncInterval);
+    } catch (IOException e) {
+      throw new UnavailableFileException(filename);
+    }
+  }
+
+
+  /** Whether saves are written on a background thread. */
+  private boolean _backgroundSaves = false;
+
+  /** Thread writing background saves; started by the first one. */
+  private ExecutorService _saveExecutor;
+
+  /** Background save still to be finished by awaitSave, if any. */
+  private Future<?> _pendingSave;
+
+  /** Journal extending the snapshot being written in the background, if journaling. */
+  private Journal _successorJournal;
+
+  /** Fraction of the pending background save already written. */
+  private volatile double _saveProgress = 1;
+
+  /**
+   * @param backgroundSaves true to have save and saveAs capture the
+   *        warehouse and return, leaving the writing to a background thread.
+   *        Background saves always use the binary snapshot format, whose
+   *        capture is the only step that reads the warehouse.
+   */
+  public void setBackgroundSaves(boolean backgroundSaves) {
+    _backgroundSaves = backgroundSaves;
+  }
+
+  /** @return true while a background save is being written. */
+  public boolean isSaving() {
+    _lock.readLock().lock();
+    try {
+      return _pendingSave != null && !_pendingSave.isDone();
+    } finally {
+      _lock.readLock().unlock();
+    }
+  }
+
+  /** @return fraction of the current background save already written, 1 if there is none. */
+  public double getSaveProgress() {
+    return _saveProgress;
+  }
+
+  /**
+   * Waits for the pending background save, if any, and switches the
+   * journal over to the snapshot it wrote.
+   *
+   * @throws IOException if the background save failed; the previous file and journal are kept.
+   */
+  public void awaitSave() throws IOException {
+    _lock.writeLock().lock();
+    try {
+      if (_pendingSave == null) {
+        return;
+      }
+
+      try {
+        _pendingSave.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted while waiting for " + _filename);
+      } catch (ExecutionException e) {
+        _pendingSave = null;
+        _saveProgress = 1;
+        abandonSuccessorJournal();
+        throw e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause());
+      }
+      _pendingSave = null;
+      _saveProgress = 1;
+      _snapshotLength = Files.size(Path.of(_filename));
+
+      if (_successorJournal != null) {
+        if (_journal != _successorJournal) {
+          _journal.setSuccessor(null);
+          _journal.close();
+        }
+        Files.move(Journal.successorFor(_filename), Journal.journalFor(_filename), StandardCopyOption.REPLACE_EXISTING);
+        _journal = _successorJournal;
+        _successorJournal = null;
+      }
+    } finally {
+      _lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Captures the warehouse on the calling thread and writes it to the
+   * current file on the background thread, through a temporary file so a
+   * failed save leaves the previous one intact. Operations applied while it
+   * is written are journaled for both snapshots.
+   *
+   * @throws IOException
+   */
+  private void startBackgroundSave() throws IOException {
+    BinarySnapshot snapshot = BinarySnapshot.capture(_warehouse);
+    _warehouse.markCheckpoint();
+    _snapshotLength = -1;
+    Path file = Path.of(_filename);
+    Path written = Path.of(_filename + ".tmp");
+
+    Journal successor = null;
+    if (_journalSyncInterval >= 0) {
+      successor = Journal.createUnsealed(Journal.successorFor(_filename), _journalSyncInterval);
+      if (_journal != null) {
+        _journal.setSuccessor(successor);
+      } else {
+        _journal = successor;
+      }
+    }
+    Journal sealed = successor;
+
+    if (_saveExecutor == null) {
+      _saveExecutor = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "warehouse-save");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+
+    _saveProgress = 0;
+    _successorJournal = successor;
+    _pendingSave = _saveExecutor.submit(() -> {
+      snapshot.writeTo(written, done -> _saveProgress = done);
+      if (sealed != null) {
+        sealed.seal(written);
+      }
+      Files.move(written, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      return null;
+    });
+  }
+
+  /** Drops the journal started for a background save that failed. */
+  private void abandonSuccessorJournal() throws IOException {
+    if (_successorJournal == null) {
+      return;
+    }
+    if (_journal == _successorJournal) {
+      _journal = null;
+    } else {
+      _journal.setSuccessor(null);
+    }
+    _successorJournal.close();
+    _successorJournal = null;
+    Files.deleteIfExists(Journal.successorFor(_filename));
+  }
+
+  /** Deltas appended to a binary snapshot before the next save rewrites it; 0 disables deltas. */
+  private int _deltasPerSnapshot = 0;
+
+  /** Deltas appended to the current file since its snapshot was written. */
+  private int _deltaCount;
+
+  /** Length of the binary snapshot and deltas in the current file; negative if deltas cannot be appended to it. */
+  private long _snapshotLength = -1;
+
+  /**
+   * Enables delta saves. Once the current file holds a binary snapshot,
+   * saves append only what changed since the previous save, and every
+   * deltasPerSnapshot + 1 saves the file is compacted into a new snapshot.
+   * Full saves keep using the format chosen with setBinarySnapshots; a
+   * Java serialization file is always rewritten in full.
+   *
+   * @param deltasPerSnapshot number of delta saves between full saves; 0 disables delta saves.
+   */
+  public void setDeltaSaves(int deltasPerSnapshot) {
+    _deltasPerSnapshot = deltasPerSnapshot;
+  }
+
+  /** Whether binary snapshots are loaded without building their transactions up front. */
+  private boolean _lazyLoading = false;
+
+  /**
+   * Enables lazy loading of binary snapshots. The file is mapped and each
+   * past transaction is built the first time it is looked up or listed;
+   * the file must not be changed by others while it is in use.
+   *
+   * @param lazy true to load binary snapshots lazily.
+   */
+  public void setLazyLoading(boolean lazy) {
+    _lazyLoading = lazy;
+  }
 
   /**
    * @@throws IOException
@@ -40,8 +328,36 @@ public class WarehouseManager {
    * @throws ClassNotFoundException
    */
   public void save() throws IOException, FileNotFoundException, MissingFileAssociationException {
-    try (ObjectOutputStream obOut = new ObjectOutputStream(new FileOutputStream(_filename))) {
-      obOut.writeObject(_warehouse);
+    _lock.writeLock().lock();
+    try {
+      awaitSave();
+      if (_snapshotLength >= 0 && _deltaCount < _deltasPerSnapshot) {
+        _snapshotLength = BinarySnapshot.captureChanges(_warehouse).appendTo(Path.of(_filename), _snapshotLength);
+        _warehouse.markCheckpoint();
+        _deltaCount++;
+        resetJournal();
+        return;
+      }
+
+      _deltaCount = 0;
+      if (_backgroundSaves) {
+        startBackgroundSave();
+        return;
+      }
+
+      if (_binarySnapshots) {
+        BinarySnapshot.capture(_warehouse).writeTo(Path.of(_filename));
+        _warehouse.markCheckpoint();
+        _snapshotLength = Files.size(Path.of(_filename));
+      } else {
+        try (ObjectOutputStream obOut = new ObjectOutputStream(new FileOutputStream(_filename))) {
+          obOut.writeObject(_warehouse);
+        }
+        _snapshotLength = -1;
+      }
+      resetJournal();
+    } finally {
+      _lock.writeLock().unlock();
     }
   }
 
@@ -53,26 +369,124 @@ public class WarehouseManager {
    * @throws ClassNotFoundException
    */
   public void saveAs(String filename) throws IOException, FileNotFoundException, MissingFileAssociationException {
-    _filename = filename;
-    save();
+    _lock.writeLock().lock();
+    try {
+      awaitSave();
+      if (!filename.equals(_filename)) {
+        _snapshotLength = -1;
+      }
+      _filename = filename;
+      save();
+    } finally {
+      _lock.writeLock().unlock();
+    }
   }
 
   /**
    * @@param filename
    * @@throws UnavailableFileException
    * @throws FileNotFoundException
-   * @throws IOException
+   * @throws IOException if the pending background save failed and the file
+   *         could not be loaded: the warehouse that was not saved is kept.
    */
-  public void load(String filename) throws UnavailableFileException, ClassNotFoundException {
-   
-    try (ObjectInputStream objIn = new ObjectInputStream(new FileInputStream(filename))) {
+  public void load(String filename) throws UnavailableFileException, ClassNotFoundException, IOException {
+    _lock.writeLock().lock();
+    try {
+      IOException saveFailure = null;
+      try {
+        awaitSave();
+      } catch (IOException e) {
+        saveFailure = e;
+      }
 
-      _warehouse = (Warehouse)objIn.readObject();
-      _filename = filename;
-    
-    } catch (IOException e) {
+      try {
+        open(filename);
+      } catch (UnavailableFileException | ClassNotFoundException | RuntimeException e) {
+        if (saveFailure != null) {
+          saveFailure.addSuppressed(e);
+          throw saveFailure;
+        }
+        throw e;
+      }
+      // a failed save is dropped only now that the state it failed to save was replaced
+    } finally {
+      _lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Replaces the warehouse with the one saved in a file, replaying its
+   * journal. Called with the write lock held and no background save pending.
+   */
+  private void open(String filename) throws UnavailableFileException, ClassNotFoundException {
+    Warehouse warehouse;
+    long snapshotLength = -1;
+    int deltaCount = 0;
+
+    try {
+      if (BinarySnapshot.isSnapshot(Path.of(filename))) {
+        BinarySnapshot snapshot = BinarySnapshot.readFrom(Path.of(filename));
+        warehouse = snapshot.restore(_lazyLoading);
+        snapshotLength = snapshot.getLength();
+        deltaCount = snapshot.getDeltaCount();
+      } else {
+        try (ObjectInputStream objIn = new ObjectInputStream(new FileInputStream(filename))) {
+          warehouse = (Warehouse)objIn.readObject();
+        }
+      }
+    } catch (IOException | RuntimeException e) {
       throw new UnavailableFileException(filename);
     }
+
+    Journal previousJournal = _journal;
+    if (previousJournal != null) {
+      try {
+        previousJournal.sync();
+      } catch (IOException e) {
+        throw new UnavailableFileException(filename);
+      }
+    }
+
+    // the journal is replayed into the new warehouse, which is dropped if that fails
+    Warehouse previousWarehouse = _warehouse;
+    String previousFilename = _filename;
+    long previousSnapshotLength = _snapshotLength;
+    int previousDeltaCount = _deltaCount;
+    _journal = null;
+    _warehouse = warehouse;
+    _filename = filename;
+    _snapshotLength = snapshotLength;
+    _deltaCount = deltaCount;
+    try {
+      recoverJournal(filename);
+    } catch (UnavailableFileException | RuntimeException e) {
+      _warehouse = previousWarehouse;
+      _filename = previousFilename;
+      _snapshotLength = previousSnapshotLength;
+      _deltaCount = previousDeltaCount;
+      _journal = previousJournal;
+      throw e;
+    }
+
+    if (previousJournal != null) {
+      try {
+        previousJournal.close();
+      } catch (IOException e) {
+        // its records were forced above
+      }
+    }
+  }
+
+  /** Threads converting the lines of imported files. */
+  private int _importWorkers = 1;
+
+  /**
+   * @param workers number of threads converting the lines of imported
+   *        files in parallel; entries are still applied one at a time, in
+   *        file order. 1 imports on the calling thread alone.
+   */
+  public void setImportWorkers(int workers) {
+    _importWorkers = workers;
   }
 
   /**
@@ -80,136 +494,534 @@ public class WarehouseManager {
    * @throws ImportFileException
    */
   public void importFile(String textfile) throws ImportFileException {
+    importEntries(textfile, applied -> _warehouse.importFile(textfile, _importWorkers, applied));
+  }
+
+  /**
+   * Applies the lines of an import again, as replayed from the journal.
+   *
+   * @throws ImportFileException
+   */
+  void importLines(List<String> lines) throws ImportFileException {
+    importEntries("journal", applied -> _warehouse.importLines(lines, applied));
+  }
+
+  /** Applies the lines of an import, handing over the list that records them. */
+  private interface Import {
+    void apply(List<String> applied) throws IOException, BadEntryException, DuplicatePartnerException, UnknownPartnerException, UnknownProductException;
+  }
+
+  /**
+   * Runs an import and journals the lines it applied, even if it failed
+   * partway: those lines stay applied, and the journal holds them rather
+   * than the name of a file that may change before it is replayed.
+   */
+  private void importEntries(String source, Import entries) throws ImportFileException {
+    _lock.writeLock().lock();
+    try {
+      List<String> applied = _journal != null ? new ArrayList<String>() : null;
+      boolean imported = false;
+      try {
+        entries.apply(applied);
+        imported = true;
+      } catch (IOException | BadEntryException | DuplicatePartnerException | UnknownPartnerException | UnknownProductException e) {
+        throw new ImportFileException(source, e);
+      } finally {
+        if (applied != null && !applied.isEmpty()) {
+          _journal.logImport(applied, !imported);
+        }
+      }
+    } finally {
+      _lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @param concurrent true to have queries return copies of the collections
+   *        they read, taken under the read lock, so that other threads may
+   *        change the warehouse while the results are in use.
+   */
+  public void setConcurrent(boolean concurrent) {
+    _concurrent = concurrent;
+  }
+
+  /**
+   * @return the collection as a read-only view or, in concurrent mode, as
+   *         a copy. Called with the lock held.
+   */
+  private <T> Collection<T> view(Collection<T> collection) {
+    return _concurrent ? List.copyOf(collection) : Collections.unmodifiableCollection(collection);
+  }
+
+  /** As view, for a collection of the partner, which changes it under its own lock. */
+  private <T> Collection<T> view(Partner partner, Collection<T> collection) {
+    synchronized (partner) {
+      return view(collection);
+    }
+  }
+
+  /** As view, for the batches of the product, which changes them under its own lock. */
+  private Collection<Batch> view(Product product, Collection<Batch> batches) {
+    product.lock();
     try {
-      _warehouse.importFile(textfile);
-    } catch (IOException | BadEntryException | DuplicatePartnerException | UnknownPartnerException | UnknownProductException e) {
-      throw new ImportFileException(textfile, e);
+      return view(batches);
+    } finally {
+      product.unlock();
+    }
+  }
+
+  private Collection<Batch> view(SortedBatchView batches) {
+    return _concurrent ? Collections.unmodifiableList(batches.copy()) : batches;
+  }
+
+  /**
+   * Locks for a transaction: the read lock in concurrent mode, where the
+   * warehouse locks the products involved, and the write lock otherwise,
+   * while a journal is open, or while a lazily loaded history may still
+   * be built by the transaction.
+   *
+   * @return the lock held, to be unlocked by the caller.
+   */
+  private Lock lockForTransaction() {
+    if (_concurrent) {
+      Lock lock = _lock.readLock();
+      lock.lock();
+      if (_journal == null && !_warehouse.hasPendingHistory()) {
+        return lock;
+      }
+      lock.unlock();
+    }
+    Lock lock = _lock.writeLock();
+    lock.lock();
+    return lock;
+  }
+
+  /**
+   * Locks for a query on transactions. A lazily loaded warehouse builds
+   * transactions as they are read, so while it still has some to build
+   * such queries take the write lock instead.
+   *
+   * @return the lock held, to be unlocked by the caller.
+   */
+  private Lock lockForReading() {
+    Lock lock = _lock.readLock();
+    lock.lock();
+    if (_warehouse.hasPendingHistory()) {
+      lock.unlock();
+      lock = _lock.writeLock();
+      lock.lock();
     }
+    return lock;
+  }
+
+  /**
+   * @return the write lock, for callers running several operations as one
+   *         change; the manager's own methods take it again reentrantly.
+   */
+  Lock exclusiveLock() {
+    return _lock.writeLock();
+  }
+
+  /** @return the managed warehouse. */
+  Warehouse getWarehouse() {
+    return _warehouse;
   }
 
   public boolean isFilenameSet() {
-    return !_filename.isEmpty();
+    _lock.readLock().lock();
+    try {
+      return !_filename.isEmpty();
+    } finally {
+      _lock.readLock().unlock();
+    }
   }
 
   public int getDate() {
-    return _warehouse.getDate().getDays();
+    _lock.readLock().lock();
+    try {
+      return _warehouse.getDate().getDays();
+    } finally {
+      _lock.readLock().unlock();
+    }
   }
 
   public void advanceDate(int offset) throws InvalidDaysException {
-    _warehouse.advanceDate(offset);
-    
+    _lock.writeLock().lock();
+    try {
+      _warehouse.advanceDate(offset);
+      if (_journal != null) {
+        _journal.logAdvanceDate(offset);
+      }
+    } finally {
+      _lock.writeLock().unlock();
+    }
   }
 
   public void registerPartner(String id, String name, String address) throws DuplicatePartnerException {
-    _warehouse.registerPartner(id, name, address);
+    _lock.writeLock().lock();
+    try {
+      _warehouse.registerPartner(id, name, address);
+      if (_journal != null) {
+        _journal.logRegisterPartner(id, name, address);
+      }
+    } finally {
+      _lock.writeLock().unlock();
+    }
   }
 
   public Partner getPartnerWithId(String id) throws UnknownPartnerException {
-    return _warehouse.getPartnerWithId(id);
+    _lock.readLock().lock();
+    try {
+      return _warehouse.getPartnerWithId(id);
+    } finally {
+      _lock.readLock().unlock();
+    }
   }
 
   public Collection<Partner> getPartners() {
-    return Collections.unmodifiableCollection(_warehouse.getPartners());
+    _lock.readLock().lock();
+    try {
+      return view(_warehouse.getPartners());
+    } finally {
+      _lock.readLock().unlock();
+    }
   }
 
 
   public void registerBreakdownTransaction(String partnerId, String productId, int amount) throws UnknownPartnerException, UnknownProductException, UnavailableProductQuantityException {
-    Partner partner = _warehouse.getPartnerWithId(partnerId);
-    Product product = _warehouse.getProductWithId(productId);
-    _warehouse.registerBreakdownTransaction(partner, product, amount);
+    Lock lock = lockForTransaction();
+    try {
+      Partner partner = _warehouse.getPartnerWithId(partnerId);
+      Product product = _warehouse.getProductWithId(productId);
+      _warehouse.registerBreakdownTransaction(partner, product, amount);
+      if (_journal != null) {
+        _journal.logBreakdown(partnerId, productId, amount);
+      }
+    } finally {
+      lock.unlock();
+    }
   }
 
 
   public List<Notification> getPartnerNotifications(String id) throws UnknownPartnerException {
-    Partner partner = getPartnerWithId(id);
-    return partner.getNotifications();
+    _lock.writeLock().lock();
+    try {
+      Partner partner = getPartnerWithId(id);
+      _warehouse.flushNotifications();
+      List<Notification> notifications = partner.getNotifications();
+      if (_journal != null) {
+        _journal.logReadNotifications(id);
+      }
+      return notifications;
+    } finally {
+      _lock.writeLock().unlock();
+    }
   }
 
   public Collection<Product> getProducts() {
-    return Collections.unmodifiableCollection(_warehouse.getProducts());
+    _lock.readLock().lock();
+    try {
+      return view(_warehouse.getProducts());
+    } finally {
+      _lock.readLock().unlock();
+    }
   }
 
   public void togglePartnerNotifications(String productId, String partnerId) throws UnknownProductException, UnknownPartnerException {
-    Product product = _warehouse.getProductWithId(productId);
-    ProductObserver observer = _warehouse.getPartnerWithId(partnerId);
-    _warehouse.toggleNotifications(product, observer);
+    _lock.writeLock().lock();
+    try {
+      Product product = _warehouse.getProductWithId(productId);
+      ProductObserver observer = _warehouse.getPartnerWithId(partnerId);
+      _warehouse.toggleNotifications(product, observer);
+      if (_journal != null) {
+        _journal.logToggleNotifications(productId, partnerId);
+      }
+    } finally {
+      _lock.writeLock().unlock();
+    }
   }
 
   public Collection<Batch> getBatches() {
-    return Collections.unmodifiableCollection(_warehouse.getAllBatchesSorted());
+    _lock.readLock().lock();
+    try {
+      return view(_warehouse.getAllBatchesSorted());
+    } finally {
+      _lock.readLock().unlock();
+    }
   }
 
   public Collection<Batch> getBatchesFromPartner(String id) throws UnknownPartnerException {
-    return Collections.unmodifiableCollection(_warehouse.getBatchesFromPartner(id));
+    _lock.readLock().lock();
+    try {
+      return view(_warehouse.getPartnerWithId(id), _warehouse.getBatchesFromPartner(id));
+    } finally {
+      _lock.readLock().unlock();
+    }
   }
 
   public Collection<Batch> getBatchesFromProduct(String id) throws UnknownProductException { 
-    return Collections.unmodifiableCollection(_warehouse.getBatchesFromProduct(id));
+    _lock.readLock().lock();
+    try {
+      return view(_warehouse.getProductWithId(id), _warehouse.getBatchesFromProduct(id));
+    } finally {
+      _lock.readLock().unlock();
+    }
   }
 
   public Collection<Acquisition> getAcquisitionsFromPartner(String id) throws UnknownPartnerException {
-    return Collections.unmodifiableCollection(_warehouse.getAcquisitionsFromPartner(id));
+    Lock lock = lockForReading();
+    try {
+      return view(_warehouse.getPartnerWithId(id), _warehouse.getAcquisitionsFromPartner(id));
+    } finally {
+      lock.unlock();
+    }
   }
 
   public Collection<Sale> getSalesFromPartner(String id) throws UnknownPartnerException {
-    return Collections.unmodifiableCollection(_warehouse.getSalesFromPartner(id));
+    Lock lock = lockForReading();
+    try {
+      return view(_warehouse.getPartnerWithId(id), _warehouse.getSalesFromPartner(id));
+    } finally {
+      lock.unlock();
+    }
   }
 
   public Transaction getTransactionWithId(int id) throws UnknownTransactionException {
-    return _warehouse.getTransactionWithId(id);
+    Lock lock = lockForReading();
+    try {
+      return _warehouse.getTransactionWithId(id);
+    } finally {
+      lock.unlock();
+    }
   }
 
   public Collection<Batch> getBatchesUnderGivenPrice(int price) {
-    return Collections.unmodifiableCollection(_warehouse.getBatchesUnderGivenPrice(price));
+    _lock.readLock().lock();
+    try {
+      return view(_warehouse.getBatchesUnderGivenPrice(price));
+    } finally {
+      _lock.readLock().unlock();
+    }
   }
 
   public Collection<Transaction> getPaymentsPartner(String id) throws UnknownPartnerException {
-    return Collections.unmodifiableCollection(_warehouse.getPaymentsPartner(id));
+    Lock lock = lockForReading();
+    try {
+      return view(_warehouse.getPartnerWithId(id), _warehouse.getPaymentsPartner(id));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @param id partner ID.
+   * @param fromId lowest transaction ID to include.
+   * @param limit maximum number of payments returned.
+   * @return a page of the partner's payments, ordered by transaction ID.
+   * @throws UnknownPartnerException
+   */
+  public List<Transaction> getPaymentsPartner(String id, int fromId, int limit) throws UnknownPartnerException {
+    Lock lock = lockForReading();
+    try {
+      return _warehouse.getPaymentsPartner(id, fromId, limit);
+    } finally {
+      lock.unlock();
+    }
   }
 
   public boolean productExists(String id) {
-    return _warehouse.productExists(id);
+    _lock.readLock().lock();
+    try {
+      return _warehouse.productExists(id);
+    } finally {
+      _lock.readLock().unlock();
+    }
   }
 
   public void registerAcquisitionTransaction(String partnerId, String productId, double price, int quantity) throws UnknownPartnerException, UnknownProductException {
-    Partner partner = _warehouse.getPartnerWithId(partnerId);
-    Product product = _warehouse.getProductWithId(productId);
+    Lock lock = lockForTransaction();
+    try {
+      Partner partner = _warehouse.getPartnerWithId(partnerId);
+      Product product = _warehouse.getProductWithId(productId);
 
-    _warehouse.registerAcquisitionTransaction(partner, product, price, quantity);
+      _warehouse.registerAcquisitionTransaction(partner, product, price, quantity);
+      if (_journal != null) {
+        _journal.logAcquisition(partnerId, productId, price, quantity);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Registers the acquisitions of a delivery at once: partners and products
+   * are looked up once, each product receives its batches together and
+   * notifies its observers once, and the acquisitions get contiguous IDs,
+   * in the order given. Nothing is registered if some ID is unknown.
+   *
+   * @param lines the acquisitions.
+   * @throws UnknownPartnerException
+   * @throws UnknownProductException
+   */
+  public void registerAcquisitionTransactions(List<AcquisitionLine> lines) throws UnknownPartnerException, UnknownProductException {
+    Lock lock = lockForTransaction();
+    try {
+      Partner[] partners = new Partner[lines.size()];
+      Product[] products = new Product[lines.size()];
+      double[] prices = new double[lines.size()];
+      int[] quantities = new int[lines.size()];
+      Map<String, Partner> knownPartners = new HashMap<String, Partner>();
+      Map<String, Product> knownProducts = new HashMap<String, Product>();
+
+      for (int i = 0; i < lines.size(); i++) {
+        AcquisitionLine line = lines.get(i);
+        partners[i] = partnerWithId(knownPartners, line.getPartnerId());
+        products[i] = productWithId(knownProducts, line.getProductId());
+        prices[i] = line.getPrice();
+        quantities[i] = line.getQuantity();
+      }
+
+      _warehouse.registerAcquisitionTransactions(partners, products, prices, quantities);
+      if (_journal != null) {
+        _journal.logBulkAcquisition(lines);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** @return the partner, looked up once per ID in a batch of lines. */
+  private Partner partnerWithId(Map<String, Partner> known, String id) throws UnknownPartnerException {
+    Partner partner = known.get(id);
+    if (partner == null) {
+      partner = _warehouse.getPartnerWithId(id);
+      known.put(id, partner);
+    }
+    return partner;
+  }
+
+  /** @return the product, looked up once per ID in a batch of lines. */
+  private Product productWithId(Map<String, Product> known, String id) throws UnknownProductException {
+    Product product = known.get(id);
+    if (product == null) {
+      product = _warehouse.getProductWithId(id);
+      known.put(id, product);
+    }
+    return product;
   }
 
   public void registerAggregateProduct(String productId, List<String> productIds, List<Integer> quantities, double alpha) throws UnknownProductException {
-    List<Product> products = new ArrayList<Product>();
+    _lock.writeLock().lock();
+    try {
+      List<Product> products = new ArrayList<Product>();
 
-    for(String id : productIds) {
-      products.add(_warehouse.getProductWithId(id));
+      for(String id : productIds) {
+        products.add(_warehouse.getProductWithId(id));
+      }
+      _warehouse.registerAggregateProduct(productId, products, quantities, alpha);
+      if (_journal != null) {
+        _journal.logRegisterAggregateProduct(productId, productIds, quantities, alpha);
+      }
+    } finally {
+      _lock.writeLock().unlock();
     }
-    _warehouse.registerAggregateProduct(productId, products, quantities, alpha);
   }
 
   public void registerSimpleProduct(String productId) {
-    _warehouse.registerSimpleProduct(productId);
+    _lock.writeLock().lock();
+    try {
+      _warehouse.registerSimpleProduct(productId);
+      if (_journal != null) {
+        _journal.logRegisterSimpleProduct(productId);
+      }
+    } finally {
+      _lock.writeLock().unlock();
+    }
   }
 
   public void pay(int transactionId) throws UnknownTransactionException {
-    Transaction transaction = _warehouse.getTransactionWithId(transactionId);
-    _warehouse.pay(transaction);
+    Lock lock = lockForTransaction();
+    try {
+      Transaction transaction = _warehouse.getTransactionWithId(transactionId);
+      _warehouse.pay(transaction);
+      if (_journal != null) {
+        _journal.logPay(transactionId);
+      }
+    } finally {
+      lock.unlock();
+    }
   }
 
   public double getAvailableBalance() {
-    return _warehouse.getAvailableBalance();
+    _lock.readLock().lock();
+    try {
+      return _warehouse.getAvailableBalance();
+    } finally {
+      _lock.readLock().unlock();
+    }
   }
 
   public double getAccountingBalance() {
-    return _warehouse.getAccountingBalance();
+    _lock.readLock().lock();
+    try {
+      return _warehouse.getAccountingBalance();
+    } finally {
+      _lock.readLock().unlock();
+    }
   }
   
 
+  /**
+   * Registers the sales of a basket, all or none: if some product has less
+   * stock than the basket takes from it, or some ID is unknown, nothing is
+   * registered. The sales get contiguous IDs, in the order given, and are
+   * journaled as one record.
+   *
+   * @param lines the sales.
+   * @throws UnknownPartnerException
+   * @throws UnknownProductException
+   * @throws UnavailableProductQuantityException
+   */
+  public void registerSaleTransactions(List<SaleLine> lines) throws UnknownPartnerException, UnknownProductException, UnavailableProductQuantityException {
+    Lock lock = lockForTransaction();
+    try {
+      Partner[] partners = new Partner[lines.size()];
+      Product[] products = new Product[lines.size()];
+      int[] deadlines = new int[lines.size()];
+      int[] amounts = new int[lines.size()];
+      Map<String, Partner> knownPartners = new HashMap<String, Partner>();
+      Map<String, Product> knownProducts = new HashMap<String, Product>();
+
+      for (int i = 0; i < lines.size(); i++) {
+        SaleLine line = lines.get(i);
+        partners[i] = partnerWithId(knownPartners, line.getPartnerId());
+        products[i] = productWithId(knownProducts, line.getProductId());
+        deadlines[i] = line.getDeadline();
+        amounts[i] = line.getAmount();
+      }
+
+      _warehouse.registerSaleTransactions(partners, products, deadlines, amounts);
+      if (_journal != null) {
+        _journal.logBasketSale(lines);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
   public void registerSaleTransaction(String partnerId, String productId, int deadline, int amount) throws UnknownPartnerException, UnknownProductException, UnavailableProductQuantityException {
-    Partner partner = _warehouse.getPartnerWithId(partnerId);
-    Product product = _warehouse.getProductWithId(productId);
+    Lock lock = lockForTransaction();
+    try {
+      Partner partner = _warehouse.getPartnerWithId(partnerId);
+      Product product = _warehouse.getProductWithId(productId);
 
-    _warehouse.registerSaleTransaction(partner, product, deadline, amount);
+      _warehouse.registerSaleTransaction(partner, product, deadline, amount);
+      if (_journal != null) {
+        _journal.logSale(partnerId, productId, deadline, amount);
+      }
+    } finally {
+      lock.unlock();
+    }
   }
 
 }
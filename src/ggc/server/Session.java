@@ -0,0 +1,325 @@
+package ggc.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import ggc.core.CommandSequencer;
+import ggc.core.SaleLine;
+import ggc.core.WarehouseManager;
+import ggc.core.exception.BadEntryException;
+import ggc.core.exception.DuplicatePartnerException;
+import ggc.core.exception.ImportFileException;
+import ggc.core.exception.InvalidDaysException;
+import ggc.core.exception.MissingFileAssociationException;
+import ggc.core.exception.UnavailableFileException;
+import ggc.core.exception.UnavailableProductQuantityException;
+import ggc.core.exception.UnknownPartnerException;
+import ggc.core.exception.UnknownProductException;
+import ggc.core.exception.UnknownTransactionException;
+
+/**
+ * One connection to a WarehouseServer.
+ *
+ * Requests are lines of fields separated by '|', as in import files: the
+ * request name, then its arguments. Changes use the names and fields of
+ * the import records where there is one (PARTNER, ACQUISITION, SALE,
+ * BREAKDOWN, PAYMENT, ADVANCE); BASKET|partner|deadline|product:amount#...
+ * sells a whole order, all or none. Every request gets one response:
+ *
+ *   OK|n        followed by n lines: the results, formatted as in the menus
+ *   ERROR|code  followed by the fields that explain the error
+ *
+ * Responses are flushed once no further request is waiting, so clients
+ * may pipeline requests. QUIT ends the session.
+ */
+class Session {
+
+  private final WarehouseManager _manager;
+  private final CommandSequencer _sequencer;
+  private final BufferedReader _in;
+  private final BufferedWriter _out;
+
+  Session(WarehouseManager manager, CommandSequencer sequencer, InputStream in, OutputStream out) {
+    _manager = manager;
+    _sequencer = sequencer;
+    _in = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    _out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+  }
+
+  /** Serves requests until the client quits or disconnects. */
+  void run() throws IOException {
+    String line;
+    while ((line = _in.readLine()) != null) {
+      if (line.equals("QUIT")) {
+        respond(List.of());
+        break;
+      }
+      try {
+        respond(handle(line.split("\\|")));
+      } catch (Exception e) {
+        fail(e);
+      }
+      if (!_in.ready()) {
+        _out.flush();
+      }
+    }
+    _out.flush();
+  }
+
+  /** @return the lines of the response to a request. */
+  private List<String> handle(String[] fields) throws Exception {
+    switch (fields[0]) {
+      // warehouse
+      case "DATE":
+        expect(fields, 1);
+        return lines(_manager.getDate());
+      case "ADVANCE":
+        expect(fields, 2);
+        int days = Integer.parseInt(fields[1]);
+        return change(manager -> {
+          manager.advanceDate(days);
+          return manager.getDate();
+        });
+      case "BALANCE":
+        expect(fields, 1);
+        return lines(Math.round(_manager.getAvailableBalance()) + "|" + Math.round(_manager.getAccountingBalance()));
+      case "SAVE":
+        expect(fields, 1);
+        // not a change: the manager captures the warehouse and writes it in the background
+        _manager.save();
+        return List.of();
+
+      // partners
+      case "PARTNERS":
+        expect(fields, 1);
+        return lines(_manager.getPartners());
+      case "SHOW_PARTNER":
+        expect(fields, 2);
+        return lines(_manager.getPartnerWithId(fields[1]));
+      case "PARTNER":
+        expect(fields, 4);
+        return change(manager -> {
+          manager.registerPartner(fields[1], fields[2], fields[3]);
+          return null;
+        });
+      case "NOTIFICATIONS":
+        expect(fields, 2);
+        return change(manager -> manager.getPartnerNotifications(fields[1]));
+      case "TOGGLE_NOTIFICATIONS":
+        expect(fields, 3);
+        return change(manager -> {
+          manager.togglePartnerNotifications(fields[1], fields[2]);
+          return null;
+        });
+
+      // products and batches
+      case "PRODUCTS":
+        expect(fields, 1);
+        return lines(_manager.getProducts());
+      case "SIMPLE_PRODUCT":
+        expect(fields, 2);
+        return change(manager -> {
+          manager.registerSimpleProduct(fields[1]);
+          return null;
+        });
+      case "AGGREGATE_PRODUCT":
+        expect(fields, 4);
+        return registerAggregateProduct(fields[1], Double.parseDouble(fields[2]), fields[3]);
+      case "BATCHES":
+        expect(fields, 1);
+        return lines(_manager.getBatches());
+      case "BATCHES_BY_PARTNER":
+        expect(fields, 2);
+        return lines(_manager.getBatchesFromPartner(fields[1]));
+      case "BATCHES_BY_PRODUCT":
+        expect(fields, 2);
+        return lines(_manager.getBatchesFromProduct(fields[1]));
+      case "BATCHES_UNDER":
+        expect(fields, 2);
+        return lines(_manager.getBatchesUnderGivenPrice(Integer.parseInt(fields[1])));
+
+      // transactions
+      case "ACQUISITION":
+        expect(fields, 5);
+        double price = Double.parseDouble(fields[3]);
+        int quantity = Integer.parseInt(fields[4]);
+        return change(manager -> {
+          manager.registerAcquisitionTransaction(fields[1], fields[2], price, quantity);
+          return null;
+        });
+      case "SALE":
+        expect(fields, 5);
+        int deadline = Integer.parseInt(fields[3]);
+        int amount = Integer.parseInt(fields[4]);
+        return change(manager -> {
+          manager.registerSaleTransaction(fields[1], fields[2], deadline, amount);
+          return null;
+        });
+      case "BASKET":
+        expect(fields, 4);
+        return registerBasket(fields[1], Integer.parseInt(fields[2]), fields[3]);
+      case "BREAKDOWN":
+        expect(fields, 4);
+        int broken = Integer.parseInt(fields[3]);
+        return change(manager -> {
+          manager.registerBreakdownTransaction(fields[1], fields[2], broken);
+          return null;
+        });
+      case "PAYMENT":
+        expect(fields, 2);
+        int paid = Integer.parseInt(fields[1]);
+        return change(manager -> {
+          manager.pay(paid);
+          return null;
+        });
+      case "TRANSACTION":
+        expect(fields, 2);
+        return lines(_manager.getTransactionWithId(Integer.parseInt(fields[1])));
+      case "ACQUISITIONS":
+        expect(fields, 2);
+        return lines(_manager.getAcquisitionsFromPartner(fields[1]));
+      case "SALES":
+        expect(fields, 2);
+        return lines(_manager.getSalesFromPartner(fields[1]));
+      case "PAYMENTS":
+        if (fields.length == 4) {
+          return lines(_manager.getPaymentsPartner(fields[1], Integer.parseInt(fields[2]), Integer.parseInt(fields[3])));
+        }
+        expect(fields, 2);
+        return lines(_manager.getPaymentsPartner(fields[1]));
+
+      default:
+        throw new UnknownRequestException(fields[0]);
+    }
+  }
+
+  /** @param recipe components as in import files: product:quantity#... */
+  private List<String> registerAggregateProduct(String id, double alpha, String recipe) throws Exception {
+    List<String> products = new ArrayList<String>();
+    List<Integer> quantities = new ArrayList<Integer>();
+    for (String component : recipe.split("#")) {
+      String[] parts = component.split(":");
+      if (parts.length != 2) {
+        throw new BadEntryException(recipe);
+      }
+      products.add(parts[0]);
+      quantities.add(Integer.parseInt(parts[1]));
+    }
+
+    return change(manager -> {
+      manager.registerAggregateProduct(id, products, quantities, alpha);
+      return null;
+    });
+  }
+
+  /**
+   * Sells a customer's order, all or none.
+   *
+   * @param items products and amounts, as in recipes: product:amount#...
+   */
+  private List<String> registerBasket(String partnerId, int deadline, String items) throws Exception {
+    List<SaleLine> lines = new ArrayList<SaleLine>();
+    for (String item : items.split("#")) {
+      String[] parts = item.split(":");
+      if (parts.length != 2) {
+        throw new BadEntryException(items);
+      }
+      lines.add(new SaleLine(partnerId, parts[0], deadline, Integer.parseInt(parts[1])));
+    }
+
+    return change(manager -> {
+      manager.registerSaleTransactions(lines);
+      return null;
+    });
+  }
+
+  /** Runs a change on the sequencer's writer. @return the lines of its result, if any. */
+  private List<String> change(CommandSequencer.Command<?> command) throws Exception {
+    Object result = _sequencer.call(command);
+    if (result == null) {
+      return List.of();
+    }
+    return result instanceof Collection<?> ? lines((Collection<?>) result) : lines(result);
+  }
+
+  private static void expect(String[] fields, int count) throws BadEntryException {
+    if (fields.length != count) {
+      throw new BadEntryException(String.join("|", fields));
+    }
+  }
+
+  private static List<String> lines(Object result) {
+    return List.of(result.toString());
+  }
+
+  private static List<String> lines(Collection<?> results) {
+    List<String> lines = new ArrayList<String>(results.size());
+    for (Object result : results) {
+      lines.add(result.toString());
+    }
+    return lines;
+  }
+
+  private void respond(List<String> lines) throws IOException {
+    _out.write("OK|" + lines.size());
+    _out.newLine();
+    for (String line : lines) {
+      _out.write(line);
+      _out.newLine();
+    }
+  }
+
+  private void fail(Exception e) throws IOException {
+    _out.write("ERROR|" + error(e));
+    _out.newLine();
+  }
+
+  /** @return the error code and its fields. */
+  private static String error(Exception e) {
+    if (e instanceof UnknownPartnerException) {
+      return "UNKNOWN_PARTNER|" + ((UnknownPartnerException) e).getPartnerKey();
+    }
+    if (e instanceof UnknownProductException) {
+      return "UNKNOWN_PRODUCT|" + ((UnknownProductException) e).getProductKey();
+    }
+    if (e instanceof UnknownTransactionException) {
+      return "UNKNOWN_TRANSACTION|" + ((UnknownTransactionException) e).getTransactionKey();
+    }
+    if (e instanceof DuplicatePartnerException) {
+      return "DUPLICATE_PARTNER|" + ((DuplicatePartnerException) e).getPartnerKey();
+    }
+    if (e instanceof UnavailableProductQuantityException) {
+      UnavailableProductQuantityException unavailable = (UnavailableProductQuantityException) e;
+      // as in the menus: getAvailable is the quantity requested, getAmount the one in stock
+      return "UNAVAILABLE_PRODUCT|" + unavailable.getProductId() + "|" + unavailable.getAvailable() + "|" + unavailable.getAmount();
+    }
+    if (e instanceof InvalidDaysException) {
+      return "INVALID_DAYS|" + ((InvalidDaysException) e).getInvalidDays();
+    }
+    if (e instanceof MissingFileAssociationException) {
+      return "NO_FILE";
+    }
+    if (e instanceof UnavailableFileException || e instanceof ImportFileException || e instanceof IOException) {
+      return "IO|" + e.getMessage();
+    }
+    if (e instanceof UnknownRequestException) {
+      return "UNKNOWN_REQUEST|" + ((UnknownRequestException) e).getRequest();
+    }
+    if (e instanceof BadEntryException) {
+      return "BAD_REQUEST|" + ((BadEntryException) e).getEntrySpecification();
+    }
+    if (e instanceof NumberFormatException) {
+      return "BAD_REQUEST|" + e.getMessage();
+    }
+    return "INTERNAL|" + e;
+  }
+}
@@ -0,0 +1,22 @@
+package ggc.server;
+
+/** Raised for a request whose name the server does not know. */
+class UnknownRequestException extends Exception {
+
+  /** Serial number for serialization. */
+  private static final long serialVersionUID = 202112061200L;
+
+  /** Name of the request. */
+  private final String _request;
+
+  /** @param request name of the request. */
+  UnknownRequestException(String request) {
+    super(request);
+    _request = request;
+  }
+
+  /** @return the name of the request. */
+  String getRequest() {
+    return _request;
+  }
+}
@@ -0,0 +1,115 @@
+package ggc.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+import ggc.core.CommandSequencer;
+import ggc.core.WarehouseManager;
+
+/**
+ * Headless server exposing a WarehouseManager to other programs over a
+ * line protocol (see Session) on a loopback socket.
+ *
+ * Every connection is served by its own client thread, a virtual thread
+ * where the runtime has them. Queries call the manager directly and run in
+ * parallel; changes are submitted to a CommandSequencer, whose single
+ * writer applies them in batches. Saves are written in the background,
+ * so that clients wait only for the warehouse to be captured.
+ */
+public class WarehouseServer implements Closeable {
+
+  private final WarehouseManager _manager;
+  private final CommandSequencer _sequencer;
+  private final ServerSocket _socket;
+  private final ExecutorService _clients = CommandSequencer.newClientExecutor();
+
+  /** Open connections, closed with the server. */
+  private final Set<Socket> _connections = ConcurrentHashMap.newKeySet();
+
+  private Thread _acceptor;
+
+  /**
+   * Binds the server; it accepts connections once started.
+   *
+   * @param manager manager to expose; it is switched to concurrent mode
+   *        and background saves.
+   * @param port loopback port to listen on, or 0 for any free one.
+   * @throws IOException if the port cannot be bound.
+   */
+  public WarehouseServer(WarehouseManager manager, int port) throws IOException {
+    _manager = manager;
+    _manager.setConcurrent(true);
+    _manager.setBackgroundSaves(true);
+    _socket = new ServerSocket();
+    _socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    _sequencer = new CommandSequencer(manager);
+  }
+
+  /** @return the port the server listens on. */
+  public int getPort() {
+    return _socket.getLocalPort();
+  }
+
+  /** Starts accepting connections, on a thread of its own. */
+  public void start() {
+    _acceptor = new Thread(this::accept, "warehouse-server");
+    _acceptor.start();
+  }
+
+  /** Waits until the server is closed. */
+  public void awaitClose() throws InterruptedException {
+    _acceptor.join();
+  }
+
+  private void accept() {
+    while (!_socket.isClosed()) {
+      Socket connection;
+      try {
+        connection = _socket.accept();
+      } catch (SocketException e) {
+        // closed
+        break;
+      } catch (IOException e) {
+        // this connection failed before it was accepted: keep serving the others
+        continue;
+      }
+
+      _connections.add(connection);
+      _clients.execute(() -> {
+        try (Socket socket = connection) {
+          socket.setTcpNoDelay(true);
+          new Session(_manager, _sequencer, socket.getInputStream(), socket.getOutputStream()).run();
+        } catch (IOException e) {
+          // connection dropped by the client
+        } finally {
+          _connections.remove(connection);
+        }
+      });
+    }
+  }
+
+  /**
+   * Stops accepting connections, closes the open ones, applies the changes
+   * already submitted and finishes the save being written, if any.
+   *
+   * @throws IOException if the save being written failed.
+   */
+  @Override
+  public void close() throws IOException {
+    _socket.close();
+    for (Socket connection : _connections) {
+      connection.close();
+    }
+    _clients.shutdown();
+    _sequencer.close();
+    _manager.awaitSave();
+  }
+}